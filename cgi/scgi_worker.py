@@ -0,0 +1,125 @@
+#!/usr/bin/env python3
+"""SCGI runner for CGI routes with "mode": "scgi".
+
+Started by the server as `python3 -u scgi_worker.py <socket>`. Serves one request per
+connection, one connection at a time: the script named by SCRIPT_FILENAME runs in this
+interpreter with the request's environment, the body on stdin and stdout sent straight
+back over the socket, so scripts behave as they do when forked per request.
+"""
+import io
+import os
+import runpy
+import socket
+import sys
+import tempfile
+import threading
+import time
+import traceback
+
+
+class SocketWriter(io.RawIOBase):
+    def __init__(self, conn):
+        self.conn = conn
+
+    def writable(self):
+        return True
+
+    def write(self, b):
+        self.conn.sendall(b)
+        return len(b)
+
+
+def read_netstring(f):
+    size = b""
+    while True:
+        c = f.read(1)
+        if not c:
+            raise EOFError("connection closed before request")
+        if c == b":":
+            break
+        size += c
+    data = f.read(int(size))
+    if f.read(1) != b",":
+        raise ValueError("malformed netstring")
+    return data
+
+
+def serve(conn, base_env, base_cwd):
+    rf = conn.makefile("rb")
+    fields = read_netstring(rf).split(b"\0")
+    env = {}
+    for i in range(0, len(fields) - 1, 2):
+        env[fields[i].decode("utf-8", "replace")] = fields[i + 1].decode("utf-8", "replace")
+    # large uploads go to a temp file instead of staying in the worker's memory
+    body = tempfile.SpooledTemporaryFile(max_size=1024 * 1024)
+    remaining = int(env.get("CONTENT_LENGTH") or 0)
+    while remaining > 0:
+        chunk = rf.read(min(remaining, 64 * 1024))
+        if not chunk:
+            break
+        body.write(chunk)
+        remaining -= len(chunk)
+    body.seek(0)
+
+    script = env.get("SCRIPT_FILENAME")
+    os.environ.clear()
+    os.environ.update(base_env)
+    os.environ.update(env)
+
+    # same buffering as `python -u`: bytes go out as written, text at least per line
+    sys.stdin = io.TextIOWrapper(body, encoding="utf-8")
+    sys.stdout = io.TextIOWrapper(SocketWriter(conn), encoding="utf-8",
+                                  line_buffering=True, write_through=True)
+    sys.argv = [script]
+    try:
+        runpy.run_path(script, run_name="__main__")
+    except SystemExit:
+        pass
+    finally:
+        try:
+            sys.stdout.flush()
+        except OSError:
+            pass
+        os.chdir(base_cwd)
+        body.close()
+
+
+# the server kills its workers on exit; this covers the server dying without a chance to
+def exit_with_parent():
+    parent = os.getppid()
+    while os.getppid() == parent:
+        time.sleep(1)
+    os._exit(0)
+
+
+def main():
+    path = sys.argv[1]
+    tmp = path + ".tmp"
+    if os.path.exists(tmp):
+        os.unlink(tmp)
+    srv = socket.socket(socket.AF_UNIX, socket.SOCK_STREAM)
+    srv.bind(tmp)
+    srv.listen(8)
+    # the server waits for the final name, so it only appears once connects will succeed
+    os.rename(tmp, path)
+
+    threading.Thread(target=exit_with_parent, daemon=True).start()
+    base_env = dict(os.environ)
+    base_cwd = os.getcwd()
+    stdin, stdout = sys.stdin, sys.stdout
+
+    while True:
+        conn, _ = srv.accept()
+        try:
+            serve(conn, base_env, base_cwd)
+        except BrokenPipeError:
+            pass
+        except Exception:
+            traceback.print_exc(file=sys.stderr)
+        finally:
+            sys.stdin, sys.stdout = stdin, stdout
+            conn.close()
+
+
+if __name__ == "__main__":
+    main()
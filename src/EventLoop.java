@@ -0,0 +1,836 @@
+import http.BodySink;
+import http.HttpRequest;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.*;
+import java.util.*;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Function;
+import session.Cookies;
+import session.Session;
+import session.SessionManager;
+import utils.BufferPool;
+import utils.TimingWheel;
+import utils.json.AppConfig;
+
+// one selector and the connections registered on it; every method runs on the loop's own thread
+public class EventLoop implements Runnable {
+
+    final String name;
+    private final Server server;
+    private final AppConfig appConfig;
+    private final Selector selector;
+    private final handlers.CGIHandler cgiHandler;
+
+    // work handed over from other threads, drained before each select
+    private final Queue<Runnable> tasks = new ConcurrentLinkedQueue<>();
+    private final AtomicInteger connections = new AtomicInteger();
+
+    // one timer per connection, armed at its nearest header, body or idle deadline
+    private final TimingWheel<SelectionKey> timers = new TimingWheel<>(100, 512, System.currentTimeMillis());
+    private static final long CGI_POLL_MS = 200;
+    private static final long WRITE_BUDGET_PER_EVENT = 256 * 1024;
+
+    // direct buffers shared by all loops, borrowed only while a read or write is in progress
+    static final BufferPool IO_BUFFERS = new BufferPool(8192, 64, 64L * 1024 * 1024);
+
+    // multipart uploads are written to their route's upload_dir while the body arrives
+    private static final Function<HttpRequest, BodySink> UPLOAD_SINKS =
+            req -> Router.openUploadSink(req.getChosenServer(), req);
+
+    // a response slot; handlers that answer later (CGI) deliver through it as a ResponseSink
+    class PendingResponse implements http.ResponseSink {
+
+        final HttpRequest request;
+        final SelectionKey key;
+        final long createdAt;
+
+        // filled by the router or a handler; ready publishes them to the loop
+        ByteBuffer writeBuf;
+        http.HttpResponse fileResponse;
+        volatile boolean ready;
+        // set while a handler thread still reads the request; the hand-back task releases it then
+        volatile boolean handling;
+        boolean closeAfter;
+        // set by abort(): the connection is closed once this response has been written
+        volatile boolean broken;
+
+        // headers of a file response, kept until the socket has taken all of them
+        ByteBuffer fileHeaders;
+
+        // the response handed over through publish(), for the producer's own write() and end()
+        private volatile http.HttpResponse published;
+        private final AtomicBoolean resumeQueued = new AtomicBoolean();
+
+        PendingResponse(HttpRequest request, SelectionKey key) {
+            this.request = request;
+            this.key = key;
+            this.createdAt = System.currentTimeMillis();
+        }
+
+        boolean isReady() {
+            return ready;
+        }
+
+        // a streamed CGI body that has nothing queued right now
+        boolean awaitingBody() {
+            return fileResponse != null && fileResponse.awaitingBody();
+        }
+
+        void complete(http.HttpResponse resp) {
+            if (resp.hasFileBody()) {
+                fileResponse = resp;
+            } else {
+                writeBuf = resp.toByteBuffer();
+            }
+            ready = true;
+        }
+
+        @Override
+        public void publish(http.HttpResponse response) {
+            response.setConnectionFromRequest(request);
+            published = response;
+            execute(() -> {
+                ConnCtx ctx = (ConnCtx) key.attachment();
+                if (ctx.closed || !ctx.responses.contains(this)) {
+                    // the connection went away first; a blocked producer sees write() fail
+                    try {
+                        response.close();
+                    } catch (Exception ignored) {
+                    }
+                    return;
+                }
+                complete(response);
+                updateInterest(key, ctx);
+            });
+        }
+
+        @Override
+        public boolean write(byte[] data, int off, int len) throws InterruptedException {
+            if (!published.appendBody(data, off, len)) {
+                return false;
+            }
+            resume();
+            return true;
+        }
+
+        @Override
+        public void end() {
+            published.finishStreaming();
+            resume();
+        }
+
+        @Override
+        public void abort() {
+            broken = true;
+            http.HttpResponse res = published;
+            if (res != null) {
+                res.breakStreaming();
+                resume();
+                return;
+            }
+            // nothing was published, so there is nothing to flush first
+            execute(() -> {
+                ConnCtx ctx = (ConnCtx) key.attachment();
+                if (!ctx.closed && ctx.responses.contains(this)) {
+                    safeCleanup(key);
+                }
+            });
+        }
+
+        // one pending wake-up covers any number of chunks queued before the loop gets to it
+        private void resume() {
+            if (!resumeQueued.compareAndSet(false, true)) {
+                return;
+            }
+            execute(() -> {
+                resumeQueued.set(false);
+                ConnCtx ctx = (ConnCtx) key.attachment();
+                if (!ctx.closed) {
+                    updateInterest(key, ctx);
+                }
+            });
+        }
+
+        void release() {
+            if (handling) {
+                return;
+            }
+            if (fileResponse != null) {
+                try {
+                    fileResponse.close();
+                } catch (Exception ignored) {
+                }
+                fileResponse = null;
+            }
+            if (request != null) {
+                try {
+                    request.closeBodyStreamIfOpen();
+                } catch (Exception ignored) {
+                }
+            }
+        }
+    }
+
+    static class ConnCtx {
+
+        final Server.ListenerInfo listenerInfo;
+        final SocketChannel client;
+        // borrowed from IO_BUFFERS while unparsed bytes are held, null when idle
+        ByteBuffer readBuf;
+        BufferPool.PooledBuffer readLease;
+        final List<AppConfig.ServerConfig> serverCfgs;
+        HttpRequest request;
+
+        // responses in request order; only the head may be written
+        final ArrayDeque<PendingResponse> responses = new ArrayDeque<>();
+        static final int MAX_PIPELINED = 16;
+
+        long connectedAt;
+        long lastActivityAt;
+        long requestStartedAt;
+        AppConfig.ServerConfig chosenServer;
+
+        // no more requests are parsed once a response will close the connection
+        boolean closing = false;
+        boolean inputClosed = false;
+        boolean closed = false;
+
+        TimingWheel.Timeout<SelectionKey> timer;
+        long writeBudget;
+
+        long uploadBytesThisSecond = 0;
+        long lastSecondTimestamp = 0;
+        static final long MAX_UPLOAD_PER_SECOND = 15 * 1024 * 1024;
+
+        boolean shouldLimitUpload(int bytesAboutToRead) {
+            long now = System.currentTimeMillis() / 1000;
+            if (now != lastSecondTimestamp) {
+                uploadBytesThisSecond = 0;
+                lastSecondTimestamp = now;
+            }
+            uploadBytesThisSecond += bytesAboutToRead;
+            return uploadBytesThisSecond > MAX_UPLOAD_PER_SECOND;
+        }
+
+        ConnCtx(Server.ListenerInfo info, SocketChannel client, List<AppConfig.ServerConfig> serverCfgs) {
+            this.listenerInfo = info;
+            this.client = client;
+            this.serverCfgs = serverCfgs;
+            this.request = new HttpRequest(serverCfgs, UPLOAD_SINKS);
+            this.connectedAt = System.currentTimeMillis();
+            this.lastActivityAt = this.connectedAt;
+            this.requestStartedAt = this.connectedAt;
+        }
+
+        void updateActivity() {
+            this.lastActivityAt = System.currentTimeMillis();
+        }
+
+        // the completed request now belongs to its PendingResponse
+        void nextRequest() {
+            this.request = new HttpRequest(serverCfgs, UPLOAD_SINKS);
+            this.requestStartedAt = 0;
+        }
+
+        void borrowReadBuf() {
+            if (readLease == null) {
+                readLease = IO_BUFFERS.acquire();
+                readBuf = readLease.buffer();
+            }
+        }
+
+        void returnReadBuf(boolean force) {
+            if (readLease != null && (force || readBuf.position() == 0)) {
+                IO_BUFFERS.release(readLease);
+                readLease = null;
+                readBuf = null;
+            }
+        }
+
+        boolean canRead() {
+            return !closing && !inputClosed && responses.size() < MAX_PIPELINED;
+        }
+    }
+
+    EventLoop(String name, AppConfig appConfig, Server server) throws IOException {
+        this.name = name;
+        this.appConfig = appConfig;
+        this.server = server;
+        this.selector = Selector.open();
+        this.cgiHandler = new handlers.CGIHandler(3, this::execute);
+    }
+
+    // only called before the loop starts running
+    SelectionKey registerListener(ServerSocketChannel channel, Server.ListenerInfo info) throws IOException {
+        return channel.register(selector, SelectionKey.OP_ACCEPT, info);
+    }
+
+    int connectionCount() {
+        return connections.get();
+    }
+
+    // may be called from any thread; the channel is registered on this loop's thread
+    void adopt(SocketChannel client, Server.ListenerInfo info) {
+        connections.incrementAndGet();
+        execute(() -> registerClient(client, info));
+    }
+
+    void execute(Runnable task) {
+        tasks.add(task);
+        selector.wakeup();
+    }
+
+    @Override
+    public void run() {
+        BufferPool.cacheOnThisThread();
+        while (true) {
+            try {
+                runTasks();
+                cgiHandler.checkPendingCGI();
+
+                int ready = select();
+
+                timers.expire(System.currentTimeMillis(), this::onTimeout);
+
+                if (ready == 0) {
+                    continue;
+                }
+            } catch (IOException e) {
+                System.err.println("✗ Selector error: " + e.getMessage());
+                continue;
+            }
+
+            Iterator<SelectionKey> it = selector.selectedKeys().iterator();
+            while (it.hasNext()) {
+                SelectionKey key = it.next();
+                it.remove();
+
+                if (!key.isValid()) {
+                    continue;
+                }
+
+                try {
+                    if (key.isAcceptable()) {
+                        onAccept(key);
+                    } else if (key.isReadable()) {
+                        onRead(key);
+                    } else if (key.isWritable()) {
+                        onWrite(key);
+                    }
+                } catch (Exception e) {
+                    System.err.println("✗ Event error: " + e.getMessage());
+                    // e.printStackTrace();
+                    safeCleanup(key);
+                }
+            }
+        }
+    }
+
+    // sleeps until the nearest deadline; running CGI scripts still need their output polled
+    private int select() throws IOException {
+        long timeout = timers.nextExpiryDelay(System.currentTimeMillis());
+        if (cgiHandler.hasAnyPending()) {
+            timeout = timeout < 0 ? CGI_POLL_MS : Math.min(timeout, CGI_POLL_MS);
+        }
+        return timeout < 0 ? selector.select() : selector.select(timeout);
+    }
+
+    private void runTasks() {
+        Runnable task;
+        while ((task = tasks.poll()) != null) {
+            task.run();
+        }
+    }
+
+    private void onAccept(SelectionKey key) throws Exception {
+        Server.ListenerInfo info = (Server.ListenerInfo) key.attachment();
+        ServerSocketChannel srv = (ServerSocketChannel) key.channel();
+
+        SocketChannel client = srv.accept();
+        if (client == null) {
+            return;
+        }
+
+        client.configureBlocking(false);
+
+        server.pickLoop(this).adopt(client, info);
+    }
+
+    private void registerClient(SocketChannel client, Server.ListenerInfo info) {
+        try {
+            ConnCtx ctx = new ConnCtx(info, client, info.serverCfgs);
+
+            SelectionKey ckey = client.register(selector, SelectionKey.OP_READ);
+            ckey.attach(ctx);
+            armTimer(ckey, ctx);
+        } catch (IOException e) {
+            connections.decrementAndGet();
+            try {
+                client.close();
+            } catch (Exception ignored) {
+            }
+        }
+    }
+
+    private void onRead(SelectionKey key) {
+        ConnCtx ctx = (ConnCtx) key.attachment();
+        SocketChannel client = ctx.client;
+
+        try {
+            if (ctx.shouldLimitUpload(IO_BUFFERS.bufferSize())) {
+                return;
+            }
+
+            ctx.borrowReadBuf();
+            int n = client.read(ctx.readBuf);
+
+            if (n <= 0) {
+                ctx.returnReadBuf(false);
+            }
+
+            if (n == -1) {
+                ctx.inputClosed = true;
+                if (ctx.responses.isEmpty()) {
+                    cleanup(key, client, ctx);
+                } else {
+                    updateInterest(key, ctx);
+                }
+                return;
+            }
+
+            if (n == 0) {
+                return;
+            }
+
+            ctx.updateActivity();
+            processInput(key, ctx);
+
+        } catch (IOException e) {
+            cleanup(key, client, ctx);
+        }
+    }
+
+    // parses as many requests as the buffered bytes hold; leftover bytes stay in readBuf
+    private void processInput(SelectionKey key, ConnCtx ctx) {
+        ctx.readBuf.flip();
+
+        try {
+            while (ctx.readBuf.hasRemaining() && ctx.canRead()) {
+                if (ctx.requestStartedAt == 0) {
+                    ctx.requestStartedAt = System.currentTimeMillis();
+                }
+
+                ctx.request.consume(ctx.readBuf);
+
+                if (!ctx.request.isRequestCompleted()) {
+                    break;
+                }
+
+                ctx.chosenServer = ctx.request.getChosenServer();
+                dispatch(key, ctx);
+                ctx.nextRequest();
+            }
+            ctx.readBuf.compact();
+
+        } catch (IllegalArgumentException e) {
+            if (ctx.request.getChosenServer() != null) {
+                ctx.chosenServer = ctx.request.getChosenServer();
+            }
+            int code = 400; // default
+
+            try {
+                code = Integer.parseInt(e.getMessage().trim());
+            } catch (Exception ignored) {
+            }
+            String reason = getReasonPhrase(code);
+            String errPage = "";
+            if (ctx.chosenServer != null && ctx.chosenServer.errorPages != null
+                    && ctx.chosenServer.errorPages.containsKey(code)) {
+                errPage = ctx.chosenServer.errorPages.get(code);
+            }
+
+            failConnection(key, ctx, http.HttpResponse.ErrorResponse(code, reason, "", errPage).toByteBuffer());
+
+        } catch (Exception e) {
+            if (ctx.request.getChosenServer() != null) {
+                ctx.chosenServer = ctx.request.getChosenServer();
+            }
+
+            String errPage = "";
+            if (ctx.chosenServer != null && ctx.chosenServer.errorPages != null
+                    && ctx.chosenServer.errorPages.containsKey(500)) {
+                errPage = ctx.chosenServer.errorPages.get(500);
+            }
+
+            failConnection(key, ctx, http.HttpResponse.ErrorResponse(500, "Internal Server Error", "", errPage).toByteBuffer());
+        }
+
+        ctx.returnReadBuf(false);
+        updateInterest(key, ctx);
+        armTimer(key, ctx);
+    }
+
+    // queues a final response after the ones already pending; the connection closes once it is written
+    private void failConnection(SelectionKey key, ConnCtx ctx, ByteBuffer response) {
+        PendingResponse pr = new PendingResponse(ctx.request, key);
+        pr.writeBuf = response;
+        pr.ready = true;
+        pr.closeAfter = true;
+        ctx.responses.add(pr);
+        ctx.closing = true;
+        ctx.returnReadBuf(true);
+    }
+
+    private void dispatch(SelectionKey key, ConnCtx ctx) {
+        HttpRequest request = ctx.request;
+        PendingResponse pr = new PendingResponse(request, key);
+        pr.closeAfter = !http.HttpResponse.isKeepAlive(request);
+        if (pr.closeAfter) {
+            ctx.closing = true;
+        }
+        ctx.responses.add(pr);
+
+        AppConfig.ServerConfig serverCfg = ctx.chosenServer;
+        ExecutorService executor = server.handlerExecutor();
+        if (executor == null) {
+            handle(key, serverCfg, pr);
+            return;
+        }
+
+        // virtual_threads mode: blocking handler work runs off the loop, the result comes back as a task
+        pr.handling = true;
+        executor.execute(() -> {
+            try {
+                handle(key, serverCfg, pr);
+            } catch (Exception e) {
+                String errPage = serverCfg != null && serverCfg.errorPages != null
+                        ? serverCfg.errorPages.get(500)
+                        : null;
+                pr.complete(http.HttpResponse.ErrorResponse(500, "Internal Server Error", "", errPage));
+            }
+            execute(() -> {
+                pr.handling = false;
+                if (ctx.closed || !ctx.responses.contains(pr)) {
+                    cgiHandler.cleanup(pr);
+                    pr.release();
+                    return;
+                }
+                updateInterest(key, ctx);
+            });
+        });
+    }
+
+    // session lookup and routing; runs on the loop or on a handler thread
+    private void handle(SelectionKey key, AppConfig.ServerConfig serverCfg, PendingResponse pr) {
+        HttpRequest request = pr.request;
+
+        String cookieHeader = request.getHeaders().get(http.HttpHeaders.COOKIE);
+        Map<String, String> cookies = Cookies.parseCookies(cookieHeader);
+        Session session = null;
+
+        if (cookies.containsKey("SESSION_ID")) {
+            session = SessionManager.getSession(cookies.get("SESSION_ID"));
+        }
+        boolean newSession = false;
+
+        if (session == null) {
+            session = SessionManager.createSession(0); // 1h
+            newSession = true;
+        }
+        request.setSession(session);
+
+        Router router = new Router(serverCfg, request, cgiHandler, pr);
+        http.HttpResponse resp = router.route();
+
+        if (resp == null) {
+            // CGI: the handler publishes through the slot once the script has output
+            return;
+        }
+        if (newSession) {
+            Cookies c = new Cookies(
+                    "SESSION_ID",
+                    session.getSessionId(),
+                    3600
+            );
+            resp.setHeaders("Set-Cookie", c.generateCookieString());
+        }
+        resp.setConnectionFromRequest(request);
+        pr.complete(resp);
+    }
+
+    private void onWrite(SelectionKey key) {
+        ConnCtx ctx = (ConnCtx) key.attachment();
+        SocketChannel client = ctx.client;
+        try {
+            // OP_WRITE stays set when the budget runs out, so the loop serves everyone else first
+            ctx.writeBudget = WRITE_BUDGET_PER_EVENT;
+
+            PendingResponse head;
+            while ((head = ctx.responses.peek()) != null && head.isReady()) {
+                if (!writeResponse(ctx, head)) {
+                    if (head.awaitingBody()) {
+                        // the CGI reader turns OP_WRITE back on when it queues more
+                        updateInterest(key, ctx);
+                    }
+                    return;
+                }
+
+                ctx.responses.poll();
+                head.release();
+
+                if (head.closeAfter || head.broken) {
+                    cleanup(key, client, ctx);
+                    return;
+                }
+            }
+
+            if (ctx.responses.isEmpty() && ctx.inputClosed) {
+                cleanup(key, client, ctx);
+                return;
+            }
+
+            if (ctx.readBuf != null && ctx.canRead()) {
+                // pipelined bytes that were held back while the queue was full
+                processInput(key, ctx);
+                return;
+            }
+
+            updateInterest(key, ctx);
+
+        } catch (Exception e) {
+            System.err.println("✗ Write error: " + e.getMessage() + " " + e.getClass().getName());
+            // e.printStackTrace();
+            safeCleanup(key);
+        }
+    }
+
+    // returns true once the whole response has been handed to the socket; false when the socket
+    // is full or this connection has used its write budget for the current loop iteration
+    private boolean writeResponse(ConnCtx ctx, PendingResponse pr) throws IOException {
+        if (pr.fileResponse != null) {
+            http.HttpResponse resp = pr.fileResponse;
+            if (pr.fileHeaders == null) {
+                pr.fileHeaders = resp.headerBuffer();
+            }
+            if (!writeBuffer(ctx, pr.fileHeaders)) {
+                return false;
+            }
+            // the file position lives in the response, so a full socket just resumes on the next OP_WRITE
+            while (resp.hasRemainingFileBody()) {
+                if (ctx.writeBudget <= 0) {
+                    return false;
+                }
+                long n = resp.transferFileBody(ctx.client, ctx.writeBudget);
+                if (n <= 0) {
+                    return false;
+                }
+                ctx.writeBudget -= n;
+                ctx.updateActivity();
+            }
+            return true;
+        }
+
+        return writeBuffer(ctx, pr.writeBuf);
+    }
+
+    private boolean writeBuffer(ConnCtx ctx, ByteBuffer buf) throws IOException {
+        if (!buf.hasRemaining()) {
+            return true;
+        }
+        if (ctx.writeBudget <= 0) {
+            return false;
+        }
+
+        int limit = buf.limit();
+        if (buf.remaining() > ctx.writeBudget) {
+            buf.limit(buf.position() + (int) ctx.writeBudget);
+        }
+        int written;
+        try {
+            written = ctx.client.write(buf);
+        } finally {
+            buf.limit(limit);
+        }
+
+        if (written > 0) {
+            ctx.writeBudget -= written;
+            ctx.updateActivity();
+        }
+
+        return !buf.hasRemaining();
+    }
+
+    private void updateInterest(SelectionKey key, ConnCtx ctx) {
+        if (!key.isValid()) {
+            return;
+        }
+        int ops = 0;
+        if (ctx.canRead()) {
+            ops |= SelectionKey.OP_READ;
+        }
+        PendingResponse head = ctx.responses.peek();
+        if (head != null && head.isReady() && !head.awaitingBody()) {
+            ops |= SelectionKey.OP_WRITE;
+        }
+        key.interestOps(ops);
+    }
+
+    private void onTimeout(SelectionKey key) {
+        ConnCtx ctx = (ConnCtx) key.attachment();
+        ctx.timer = null;
+        if (ctx.closed || !key.isValid()) {
+            return;
+        }
+
+        long now = System.currentTimeMillis();
+        long headerTimeout = appConfig.timeouts.headerMs;
+        long bodyTimeout = appConfig.timeouts.bodyMs;
+        long idleTimeout = appConfig.timeouts.idleKeepAliveMs;
+
+        long elapsed = now - ctx.requestStartedAt;
+        long idle = now - ctx.lastActivityAt;
+
+        if (!ctx.closing && ctx.requestStartedAt != 0 && elapsed > headerTimeout) {
+            handleHttpError(key, ctx, "408 Request Timeout");
+        } else {
+            PendingResponse head = ctx.responses.peek();
+            if (head != null && !head.isReady() && now - head.createdAt > bodyTimeout) {
+                handleHttpError(key, ctx, "408 Request Timeout");
+            } else if (idle > idleTimeout) {
+                safeCleanup(key);
+                return;
+            }
+        }
+
+        // activity may have pushed the deadline out since the timer was armed
+        armTimer(key, ctx);
+    }
+
+    private long nextDeadline(ConnCtx ctx) {
+        long deadline = ctx.lastActivityAt + appConfig.timeouts.idleKeepAliveMs;
+        if (!ctx.closing && ctx.requestStartedAt != 0) {
+            deadline = Math.min(deadline, ctx.requestStartedAt + appConfig.timeouts.headerMs);
+        }
+        PendingResponse head = ctx.responses.peek();
+        if (head != null && !head.isReady()) {
+            deadline = Math.min(deadline, head.createdAt + appConfig.timeouts.bodyMs);
+        }
+        return deadline + 1;
+    }
+
+    // only moves a timer earlier; a timer that fires too soon re-arms itself from onTimeout
+    private void armTimer(SelectionKey key, ConnCtx ctx) {
+        if (ctx.closed) {
+            return;
+        }
+        long deadline = nextDeadline(ctx);
+        if (ctx.timer != null) {
+            if (ctx.timer.getDeadline() <= deadline) {
+                return;
+            }
+            timers.cancel(ctx.timer);
+        }
+        ctx.timer = timers.schedule(key, deadline);
+    }
+
+    private void handleHttpError(SelectionKey key, ConnCtx ctx, String error) {
+        try {
+            String[] parts = error.split(" ", 2);
+            String code = parts[0];
+            String message = parts.length > 1 ? parts[1] : "Error";
+
+            String response = "HTTP/1.1 " + code + " " + message + "\r\n"
+                    + "Content-Type: text/html; charset=UTF-8\r\n"
+                    + "Connection: close\r\n"
+                    + "Content-Length: ";
+
+            String body = "<html><body><h1>" + code + " " + message + "</h1></body></html>";
+            response += body.length() + "\r\n\r\n" + body;
+
+            for (PendingResponse pr : ctx.responses) {
+                cgiHandler.cleanup(pr);
+                pr.release();
+            }
+            ctx.responses.clear();
+            failConnection(key, ctx, ByteBuffer.wrap(response.getBytes()));
+
+            updateInterest(key, ctx);
+
+        } catch (Exception e) {
+            safeCleanup(key);
+        }
+    }
+
+    private void cleanup(SelectionKey key, SocketChannel client, ConnCtx ctx) {
+        // System.out.println("✓ Cleaning up connection sample");
+        if (ctx.closed) {
+            return;
+        }
+        ctx.closed = true;
+        connections.decrementAndGet();
+        timers.cancel(ctx.timer);
+        ctx.timer = null;
+        ctx.returnReadBuf(true);
+
+        for (PendingResponse pr : ctx.responses) {
+            cgiHandler.cleanup(pr);
+            pr.release();
+        }
+        ctx.responses.clear();
+
+        try {
+            ctx.request.closeBodyStreamIfOpen();
+        } catch (Exception ignored) {
+        }
+
+        try {
+            key.cancel();
+        } catch (Exception ignored) {
+        }
+
+        try {
+            client.close();
+        } catch (Exception ignored) {
+        }
+    }
+
+    private void safeCleanup(SelectionKey key) {
+        System.out.println("✓ Cleaning up connection");
+        try {
+            Object att = key.attachment();
+            if (att instanceof ConnCtx) {
+                ConnCtx ctx = (ConnCtx) att;
+                cleanup(key, ctx.client, ctx);
+            } else {
+                key.cancel();
+                key.channel().close();
+            }
+        } catch (Exception ignored) {
+        }
+    }
+
+    private String getReasonPhrase(int code) {
+        switch (code) {
+            case 400:
+                return "Bad Request";
+            case 403:
+                return "Forbidden";
+            case 404:
+                return "Not Found";
+            case 405:
+                return "Method Not Allowed";
+            case 411:
+                return "Length Required";
+            case 413:
+                return "Payload Too Large";
+            case 500:
+                return "Internal Server Error";
+            default:
+                return "Error";
+        }
+    }
+}
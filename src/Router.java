@@ -1,9 +1,11 @@
 
 import handlers.CGIHandler;
 import handlers.StaticFileHandler;
+import handlers.UploadHandler;
+import http.BodySink;
 import http.HttpRequest;
 import http.HttpResponse;
-import java.nio.channels.SelectionKey;
+import http.ResponseSink;
 import java.nio.file.Files;
 import java.util.List;
 import utils.json.AppConfig.RouteConfig;
@@ -14,13 +16,13 @@ public class Router {
     private final ServerConfig config;
     private final HttpRequest request;
     private final CGIHandler cgiHandler;
-    private final SelectionKey clientKey;
+    private final ResponseSink responseSink;
 
-    public Router(ServerConfig config, HttpRequest request, CGIHandler cgiHandler, SelectionKey clientKey) {
+    public Router(ServerConfig config, HttpRequest request, CGIHandler cgiHandler, ResponseSink responseSink) {
         this.config = config;
         this.request = request;
         this.cgiHandler = cgiHandler;
-        this.clientKey = clientKey;
+        this.responseSink = responseSink;
     }
 
     public HttpResponse route() {
@@ -29,19 +31,10 @@ public class Router {
                     "Invalid HTTP request", errorPage(400));
         }
 
-        if (request.getBodyFile() != null) {
-            try {
-                long size = Files.size(request.getBodyFile());
-                if (size > config.clientMaxBodySize) {
-                    return HttpResponse.ErrorResponse(413, "Payload Too Large",
-                            "Request body exceeds maximum allowed size",
-                            errorPage(413));
-                }
-            } catch (Exception e) {
-                return HttpResponse.ErrorResponse(500, "Internal Server Error",
-                        "Failed to read body file size",
-                        errorPage(500));
-            }
+        if (request.getBody() != null && request.getBody().size() > config.clientMaxBodySize) {
+            return HttpResponse.ErrorResponse(413, "Payload Too Large",
+                    "Request body exceeds maximum allowed size",
+                    errorPage(413));
         }
 
         String path = stripQuery(request.getPath());
@@ -70,7 +63,7 @@ public class Router {
         if (matchedRoute.cgi != null) {
             try {
 
-                cgiHandler.executeCGI(clientKey, matchedRoute, request, config.errorPages);
+                cgiHandler.executeCGI(responseSink, matchedRoute, request, config.errorPages);
                 return null;
             } catch (Exception e) {
                 return HttpResponse.ErrorResponse(500, "Internal Server Error",
@@ -79,7 +72,7 @@ public class Router {
         }
 
         if ("POST".equals(method) && matchedRoute.uploadDir != null) {
-            return handlers.UploadHandler.handleUpload(matchedRoute, request, config.errorPages);
+            return UploadHandler.handleUpload(matchedRoute, request, config.errorPages);
         }
 
         if ("DELETE".equals(method)) {
@@ -100,6 +93,21 @@ public class Router {
                 "Not implemented yet", errorPage(500));
     }
 
+    // resolves the upload route as soon as the head is in, so the body can be parsed while it arrives
+    static BodySink openUploadSink(ServerConfig config, HttpRequest request) {
+        if (config == null || !"POST".equals(request.getMethod()) || request.getPath() == null) {
+            return null;
+        }
+        RouteConfig route = findBestRoute(config.routes, stripQuery(request.getPath()), "POST");
+        if (route == null || route.redirect != null || route.cgi != null || route.uploadDir == null) {
+            return null;
+        }
+        if (route.methods != null && !route.methods.isEmpty() && !route.methods.contains("POST")) {
+            return null;
+        }
+        return UploadHandler.openUpload(route, request);
+    }
+
     private String errorPage(int code) {
         if (config == null || config.errorPages == null) {
             return null;
@@ -178,6 +186,13 @@ public class Router {
         c.index = r.index;
         c.directoryListing = r.directoryListing;
         c.uploadDir = r.uploadDir;
+        c.sendfileThreshold = r.sendfileThreshold;
+        c.mmapMaxSize = r.mmapMaxSize;
+        c.etag = r.etag;
+        c.cacheControl = r.cacheControl;
+        c.gzip = r.gzip;
+        c.gzipMinSize = r.gzipMinSize;
+        c.gzipTypes = r.gzipTypes;
         c.cgi = r.cgi;
         c.redirect = r.redirect;
         return c;
@@ -1,19 +1,20 @@
-
-import http.HttpRequest;
 import java.io.IOException;
 import java.net.InetSocketAddress;
-import java.nio.ByteBuffer;
+import java.net.StandardSocketOptions;
 import java.nio.channels.*;
 import java.util.*;
-import session.Cookies;
-import session.Session;
-import session.SessionManager;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
 import utils.json.AppConfig;
 
 public class Server {
 
     private final AppConfig appConfig;
-    private final handlers.CGIHandler cgiHandler;
+    private final List<EventLoop> workers = new ArrayList<>();
+    private int nextWorker = 0;
+    private boolean sharded = false;
+    private final ExecutorService handlerExecutor;
 
     static class ListenerInfo {
 
@@ -31,437 +32,129 @@ public class Server {
         }
     }
 
-    static class ConnCtx {
-
-        final ListenerInfo listenerInfo;
-        final SocketChannel client;
-        final ByteBuffer readBuf;
-        final HttpRequest request;
-
-        ByteBuffer writeBuf;
-        long connectedAt;
-        long lastActivityAt;
-        boolean responseReady;
-        AppConfig.ServerConfig chosenServer;
-
-        boolean isStreaming = false;
-        boolean streamingHeadersSent = false;
-
-        long uploadBytesThisSecond = 0;
-        long lastSecondTimestamp = 0;
-        static final long MAX_UPLOAD_PER_SECOND = 15 * 1024 * 1024;
-
-        boolean shouldLimitUpload(int bytesAboutToRead) {
-            long now = System.currentTimeMillis() / 1000;
-            if (now != lastSecondTimestamp) {
-                uploadBytesThisSecond = 0;
-                lastSecondTimestamp = now;
-            }
-            uploadBytesThisSecond += bytesAboutToRead;
-            return uploadBytesThisSecond > MAX_UPLOAD_PER_SECOND;
-        }
-
-        ConnCtx(ListenerInfo info, SocketChannel client, int bufSize, List<AppConfig.ServerConfig> serverCfgs) {
-            this.listenerInfo = info;
-            this.client = client;
-            this.readBuf = ByteBuffer.allocate(bufSize);
-            this.request = new HttpRequest(serverCfgs);
-            this.connectedAt = System.currentTimeMillis();
-            this.lastActivityAt = this.connectedAt;
-            this.responseReady = false;
-        }
-
-        void updateActivity() {
-            this.lastActivityAt = System.currentTimeMillis();
-        }
-    }
-
     public Server(AppConfig appConfig) throws Exception {
         this.appConfig = appConfig;
-        this.cgiHandler = new handlers.CGIHandler(3);
-
-        Selector selector = Selector.open();
-        Map<Integer, SelectionKey> openedPorts = new HashMap<>();
+        this.handlerExecutor = "virtual_threads".equals(appConfig.executionMode)
+                ? newHandlerExecutor()
+                : null;
+        handlers.StaticFileCache.configure(appConfig.staticCache.maxBytes, appConfig.staticCache.revalidateMs);
+        handlers.MappedFileCache.configure(appConfig.mmapMaxBytes);
+        handlers.CgiLimiter.configure(appConfig.cgiLimits.maxConcurrent, appConfig.cgiLimits.maxQueue);
+        handlers.CgiResponseCache.configure(appConfig.cgiCacheMaxBytes);
+
+        // a single loop accepts and serves; with more, one loop only accepts and hands off.
+        // with SO_REUSEPORT shards every loop owns its own listeners and the kernel spreads accepts
+        int loops = Math.max(1, appConfig.eventLoops);
+        int shards = appConfig.reusePortShards;
+        if (shards > 1 && !reusePortSupported()) {
+            System.err.println("✗ SO_REUSEPORT is not supported here, using a single acceptor");
+            shards = 0;
+        }
+
+        EventLoop acceptor;
+        if (shards > 1) {
+            sharded = true;
+            for (int i = 0; i < shards; i++) {
+                workers.add(new EventLoop("shard-" + i, appConfig, this));
+            }
+            acceptor = workers.get(0);
+        } else if (loops == 1) {
+            acceptor = new EventLoop("loop-0", appConfig, this);
+            workers.add(acceptor);
+        } else {
+            acceptor = new EventLoop("acceptor", appConfig, this);
+            for (int i = 0; i < loops; i++) {
+                workers.add(new EventLoop("loop-" + i, appConfig, this));
+            }
+        }
+
+        Map<Integer, ListenerInfo> openedPorts = new HashMap<>();
 
         for (AppConfig.ServerConfig sc : appConfig.servers) {
             for (int port : sc.ports) {
                 if (openedPorts.containsKey(port)) {
-                    SelectionKey existingKey = openedPorts.get(port);
-                    ListenerInfo info = (ListenerInfo) existingKey.attachment();
-                    info.addServer(sc);
+                    openedPorts.get(port).addServer(sc);
                     continue;
                 }
 
-                ServerSocketChannel server = ServerSocketChannel.open();
-                server.bind(new InetSocketAddress(port));
-                server.configureBlocking(false);
-
-                SelectionKey key = server.register(selector, SelectionKey.OP_ACCEPT);
-
                 ListenerInfo info = new ListenerInfo(port);
                 info.addServer(sc);
 
-                key.attach(info);
-                openedPorts.put(port, key);
+                if (sharded) {
+                    for (EventLoop loop : workers) {
+                        loop.registerListener(openListener(port, true), info);
+                    }
+                } else {
+                    acceptor.registerListener(openListener(port, false), info);
+                }
+                openedPorts.put(port, info);
 
                 // System.out.println("✓ Listening on " + sc.host + ":" + port);
             }
         }
 
-        // System.out.println("\n✓ Server started successfully!\n");
-        while (true) {
-            checkAllPendingCGI(selector);
-
-            int ready = selector.select(200);
-
-            checkTimeouts(selector);
-
-            if (ready == 0) {
-                continue;
-            }
-
-            Iterator<SelectionKey> it = selector.selectedKeys().iterator();
-            while (it.hasNext()) {
-                SelectionKey key = it.next();
-                it.remove();
-
-                if (!key.isValid()) {
-                    continue;
-                }
-
-                try {
-                    if (key.isAcceptable()) {
-                        onAccept(selector, key);
-                    } else if (key.isReadable()) {
-                        onRead(key);
-                    } else if (key.isWritable()) {
-                        onWrite(key);
-                    }
-                } catch (Exception e) {
-                    System.err.println("✗ Event error: " + e.getMessage());
-                    // e.printStackTrace();
-                    safeCleanup(key);
-                }
+        for (EventLoop loop : workers) {
+            if (loop != acceptor) {
+                new Thread(loop, loop.name).start();
             }
         }
-    }
 
-    private void checkAllPendingCGI(Selector selector) {
-        for (SelectionKey key : selector.keys()) {
-            if (key.isValid() && key.attachment() instanceof ConnCtx) {
-                ConnCtx ctx = (ConnCtx) key.attachment();
-                if (cgiHandler.hasPending(key)) {
-                    Map<Integer, String> errorPages = ctx.chosenServer != null && ctx.chosenServer.errorPages != null
-                            ? ctx.chosenServer.errorPages
-                            : new HashMap<>();
-                    cgiHandler.checkPendingCGI(key, errorPages);
-                }
-            }
-        }
+        // System.out.println("\n✓ Server started successfully!\n");
+        acceptor.run();
     }
 
-    private void onAccept(Selector selector, SelectionKey key) throws Exception {
-        ListenerInfo info = (ListenerInfo) key.attachment();
-        ServerSocketChannel srv = (ServerSocketChannel) key.channel();
-
-        SocketChannel client = srv.accept();
-        if (client == null) {
-            return;
-        }
-
-        client.configureBlocking(false);
-
-        ConnCtx ctx = new ConnCtx(info, client, 8192, info.serverCfgs);
-
-        SelectionKey ckey = client.register(selector, SelectionKey.OP_READ);
-        ckey.attach(ctx);
+    // null when handlers run directly on the event loops
+    ExecutorService handlerExecutor() {
+        return handlerExecutor;
     }
 
-    private void onRead(SelectionKey key) {
-        ConnCtx ctx = (ConnCtx) key.attachment();
-        SocketChannel client = ctx.client;
-
+    private static ExecutorService newHandlerExecutor() {
         try {
-            ctx.readBuf.clear();
-
-            if (ctx.shouldLimitUpload(ctx.readBuf.capacity())) {
-                return;
-            }
-
-            int n = client.read(ctx.readBuf);
-
-            if (n == -1) {
-                cleanup(key, client, ctx);
-                return;
-            }
-
-            if (n == 0) {
-                return;
-            }
-
-            ctx.updateActivity();
-            ctx.readBuf.flip();
-
-            ctx.request.consume(ctx.readBuf);
-
-            if (ctx.request.isRequestCompleted()) {
-                ctx.chosenServer = ctx.request.getChosenServer();
-                key.interestOps(SelectionKey.OP_WRITE);
-            }
-
-        } catch (IllegalArgumentException e) {
-            if (ctx.request.getChosenServer() != null) {
-                ctx.chosenServer = ctx.request.getChosenServer();
-            }
-            int code = 400; // default
-
-            try {
-                code = Integer.parseInt(e.getMessage().trim());
-            } catch (Exception ignored) {
-            }
-            String reason = getReasonPhrase(code);
-            String errPage = "";
-            if (ctx.chosenServer != null && ctx.chosenServer.errorPages != null
-                    && ctx.chosenServer.errorPages.containsKey(400)) {
-                errPage = ctx.chosenServer.errorPages.get(400);
-            }
-
-            ctx.writeBuf = http.HttpResponse.ErrorResponse(code, reason, "", errPage).toByteBuffer();
-            ctx.responseReady = true;
-            key.interestOps(SelectionKey.OP_WRITE);
-
-        } catch (Exception e) {
-            if (ctx.request.getChosenServer() != null) {
-                ctx.chosenServer = ctx.request.getChosenServer();
-            }
-
-            String errPage = "";
-            if (ctx.chosenServer != null && ctx.chosenServer.errorPages != null
-                    && ctx.chosenServer.errorPages.containsKey(500)) {
-                errPage = ctx.chosenServer.errorPages.get(500);
-            }
-
-            ctx.writeBuf = http.HttpResponse.ErrorResponse(500, "Internal Server Error", "", errPage).toByteBuffer();
-            ctx.responseReady = true;
-            key.interestOps(SelectionKey.OP_WRITE);
-
+            // looked up at runtime so the sources still build on Java 17
+            return (ExecutorService) Executors.class.getMethod("newVirtualThreadPerTaskExecutor").invoke(null);
+        } catch (ReflectiveOperationException e) {
+            System.err.println("✗ Virtual threads need Java 21, using a cached thread pool");
+            AtomicInteger ids = new AtomicInteger();
+            return Executors.newCachedThreadPool(r -> {
+                Thread t = new Thread(r, "handler-" + ids.incrementAndGet());
+                t.setDaemon(true);
+                return t;
+            });
         }
     }
 
-    private void onWrite(SelectionKey key) {
-        ConnCtx ctx = (ConnCtx) key.attachment();
-        SocketChannel client = ctx.client;
-        try {
-
-            if (ctx.isStreaming) {
-                try {
-                    if (ctx.writeBuf != null && ctx.writeBuf.hasRemaining()) {
-                        int written = client.write(ctx.writeBuf);
-                        if (written > 0) {
-                            ctx.updateActivity();
-                        }
-                    }
-
-                    if (ctx.writeBuf == null || !ctx.writeBuf.hasRemaining()) {
-                        ctx.writeBuf = null;
-                    }
-                } catch (IOException e) {
-                    System.err.println("[STREAM] Client disconnected: " + e.getMessage());
-                    // ctx.writeBuf = null;
-                    // ctx.isStreaming = false;
-                    cleanup(key, client, ctx); // destroy CGI process + remove from pending
-                }
-
-                if (ctx.writeBuf == null || !ctx.writeBuf.hasRemaining()) {
-                    ctx.writeBuf = null;
-                }
-
-                return;
-            }
-
-            if (ctx.writeBuf == null) {
-                String cookieHeader = ctx.request.getHeader("Cookie");
-                Map<String, String> cookies = Cookies.parseCookies(cookieHeader);
-                Session session = null;
-
-                if (cookies.containsKey("SESSION_ID")) {
-                    session = SessionManager.getSession(cookies.get("SESSION_ID"));
-                }
-                boolean newSession = false;
-
-                if (session == null) {
-                    session = SessionManager.createSession(0); // 1h
-                    newSession = true;
-                }
-                ctx.request.setSession(session);
-
-                Router router = new Router(ctx.chosenServer, ctx.request, cgiHandler, key);
-                http.HttpResponse resp = router.route();
-
-                if (resp == null) {
-                    if (cgiHandler.hasPending(key)) {
-                        ctx.isStreaming = true;
-                    }
-                    return;
-                }
-                if (newSession) {
-                    Cookies c = new Cookies(
-                            "SESSION_ID",
-                            session.getSessionId(),
-                            3600
-                    );
-                    resp.setHeaders("Set-Cookie", c.generateCookieString());
-                }
-                if (resp.getBodyFile() != null) {
-                    while (true) {
-                        ByteBuffer chunk = resp.getNextChunk(8 * 1024);
-                        if (chunk == null) {
-                            break;
-                        }
-                        int written = client.write(chunk);
-                        if (written <= 0) {
-                            break;
-
-                        }
-                        ctx.updateActivity();
-                    }
-                    if (resp.getNextChunk(1) == null) {
-                        resp.close();
-                        resp = null;
-                        cleanup(key, client, ctx);
-                    }
-                } else {
-                    ctx.writeBuf = resp.toByteBuffer();
-                }
-            }
-
-            int written = client.write(ctx.writeBuf);
-
-            if (written > 0) {
-                ctx.updateActivity();
-            }
-
-            if (!ctx.writeBuf.hasRemaining()) {
-                cleanup(key, client, ctx);
-            }
-
-        } catch (Exception e) {
-            System.err.println("✗ Write error: " + e.getMessage() + " " + e.getClass().getName());
-            // e.printStackTrace();
-            safeCleanup(key);
+    private static ServerSocketChannel openListener(int port, boolean reusePort) throws IOException {
+        ServerSocketChannel server = ServerSocketChannel.open();
+        if (reusePort) {
+            server.setOption(StandardSocketOptions.SO_REUSEPORT, true);
         }
+        server.bind(new InetSocketAddress(port));
+        server.configureBlocking(false);
+        return server;
     }
 
-    private void checkTimeouts(Selector selector) {
-        long now = System.currentTimeMillis();
-        long headerTimeout = appConfig.timeouts.headerMs;
-        long bodyTimeout = appConfig.timeouts.bodyMs;
-        long idleTimeout = appConfig.timeouts.idleKeepAliveMs;
-
-        for (SelectionKey key : selector.keys()) {
-            if (!key.isValid() || !(key.attachment() instanceof ConnCtx)) {
-                continue;
-            }
-
-            ConnCtx ctx = (ConnCtx) key.attachment();
-            long elapsed = now - ctx.connectedAt;
-            long idle = now - ctx.lastActivityAt;
-
-            if (!ctx.request.isRequestCompleted() && elapsed > headerTimeout) {
-                handleHttpError(key, ctx, "408 Request Timeout");
-                continue;
-            }
-
-            if (ctx.request.isRequestCompleted() && !ctx.responseReady
-                    && elapsed > bodyTimeout) {
-                handleHttpError(key, ctx, "408 Request Timeout");
-                continue;
-            }
-
-            if (idle > idleTimeout) {
-                safeCleanup(key);
-            }
-        }
-    }
-
-    private void handleHttpError(SelectionKey key, ConnCtx ctx, String error) {
-        try {
-            String[] parts = error.split(" ", 2);
-            String code = parts[0];
-            String message = parts.length > 1 ? parts[1] : "Error";
-
-            String response = "HTTP/1.1 " + code + " " + message + "\r\n"
-                    + "Content-Type: text/html; charset=UTF-8\r\n"
-                    + "Connection: close\r\n"
-                    + "Content-Length: ";
-
-            String body = "<html><body><h1>" + code + " " + message + "</h1></body></html>";
-            response += body.length() + "\r\n\r\n" + body;
-
-            ctx.writeBuf = ByteBuffer.wrap(response.getBytes());
-            ctx.responseReady = true;
-
-            key.interestOps(SelectionKey.OP_WRITE);
-
-        } catch (Exception e) {
-            safeCleanup(key);
+    private static boolean reusePortSupported() {
+        try (ServerSocketChannel probe = ServerSocketChannel.open()) {
+            return probe.supportedOptions().contains(StandardSocketOptions.SO_REUSEPORT);
+        } catch (IOException e) {
+            return false;
         }
     }
 
-    private void cleanup(SelectionKey key, SocketChannel client, ConnCtx ctx) {
-        // System.out.println("✓ Cleaning up connection sample");
-        cgiHandler.cleanup(key);
-
-        try {
-            ctx.request.closeBodyStreamIfOpen();
-        } catch (Exception ignored) {
-        }
-
-        try {
-            key.cancel();
-        } catch (Exception ignored) {
-        }
-
-        try {
-            client.close();
-        } catch (Exception ignored) {
+    // sharded loops keep what they accept; otherwise the least-loaded worker, ties go round-robin
+    EventLoop pickLoop(EventLoop acceptingLoop) {
+        if (sharded) {
+            return acceptingLoop;
         }
-    }
-
-    private void safeCleanup(SelectionKey key) {
-        System.out.println("✓ Cleaning up connection");
-        try {
-            Object att = key.attachment();
-            if (att instanceof ConnCtx) {
-                ConnCtx ctx = (ConnCtx) att;
-                cleanup(key, ctx.client, ctx);
-            } else {
-                key.cancel();
-                key.channel().close();
+        int n = workers.size();
+        EventLoop best = null;
+        for (int i = 0; i < n; i++) {
+            EventLoop loop = workers.get((nextWorker + i) % n);
+            if (best == null || loop.connectionCount() < best.connectionCount()) {
+                best = loop;
             }
-        } catch (Exception ignored) {
         }
+        nextWorker = (nextWorker + 1) % n;
+        return best;
     }
-
-    private String getReasonPhrase(int code) {
-        switch (code) {
-            case 400:
-                return "Bad Request";
-            case 403:
-                return "Forbidden";
-            case 404:
-                return "Not Found";
-            case 405:
-                return "Method Not Allowed";
-            case 411:
-                return "Length Required";
-            case 413:
-                return "Payload Too Large";
-            case 500:
-                return "Internal Server Error";
-            default:
-                return "Error";
-        }
-    }
-
 }
@@ -3,9 +3,9 @@ package handlers;
 import http.HttpRequest;
 
 public class CGIContext {
-    private final Process process;
+    private volatile Process process;
     private final HttpRequest request;
-    private final long startTime;
+    private volatile long startTime; // 0 while the request waits for a slot
     private Thread readerThread;
     
     public CGIContext(Process process, HttpRequest request, long startTime) {
@@ -17,6 +17,10 @@ public class CGIContext {
     public Process getProcess() {
         return process;
     }
+
+    public void setProcess(Process process) {
+        this.process = process;
+    }
     
     public HttpRequest getRequest() {
         return request;
@@ -26,6 +30,10 @@ public class CGIContext {
         return startTime;
     }
 
+    public void setStartTime(long startTime) {
+        this.startTime = startTime;
+    }
+
     public void setReaderThread(Thread t) {
         this.readerThread = t;
     }
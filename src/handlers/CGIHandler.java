@@ -1,27 +1,102 @@
 package handlers;
 
+import http.ContentEncoding;
+import http.GzipEncoder;
+import http.HttpHeaders;
 import http.HttpRequest;
 import http.HttpResponse;
+import http.RequestBody;
+import http.ResponseSink;
 import java.io.*;
-import java.nio.channels.*;
 import java.nio.charset.StandardCharsets;
 import java.nio.file.*;
 import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.function.Consumer;
+import java.util.zip.Deflater;
 import utils.json.AppConfig.RouteConfig;
 
 public class CGIHandler {
 
-    private final Map<SelectionKey, CGIContext> pendingCGI;
+    // CGI output headers larger than this are treated as a headerless text/plain body
+    private static final int MAX_CGI_HEADER_BYTES = 64 * 1024;
+
+    // blocking pipe work (stdout readers, stdin feeders) runs here, so the loop never waits on a pipe
+    private static final AtomicInteger READER_IDS = new AtomicInteger();
+    private static final ExecutorService READERS = Executors.newCachedThreadPool(r -> {
+        Thread t = new Thread(r, "cgi-reader-" + READER_IDS.incrementAndGet());
+        t.setDaemon(true);
+        return t;
+    });
+
+    // each pipe thread keeps one copy buffer for every body it feeds
+    private static final ThreadLocal<byte[]> STDIN_BUFFER = ThreadLocal.withInitial(() -> new byte[64 * 1024]);
+
+    // keyed by the connection's response slot, so pipelined CGI requests can run side by side
+    private final Map<ResponseSink, CGIContext> pendingCGI;
+    // requests waiting on another request's run of the same cacheable script
+    private final Map<ResponseSink, Waiter> waiters;
     private final int cgiTimeout;
+    // the owning event loop; cleanup() runs there too
+    private final Executor loop;
 
-    public CGIHandler(int timeoutSeconds) {
-        this.pendingCGI = new HashMap<>();
+    public CGIHandler(int timeoutSeconds, Executor loop) {
+        this.pendingCGI = new ConcurrentHashMap<>();
+        this.waiters = new ConcurrentHashMap<>();
         this.cgiTimeout = timeoutSeconds;
+        this.loop = loop;
     }
 
-    public void executeCGI(SelectionKey clientKey, RouteConfig route,
+    // routes with cgi.cache answer repeated GETs from CgiResponseCache; a miss runs the script
+    // once for everyone asking for the same key meanwhile
+    public void executeCGI(ResponseSink sink, RouteConfig route,
             HttpRequest request, Map<Integer, String> errorPages) throws IOException {
 
+        RequestBody body = request.getBody();
+        if (route.cgi == null || route.cgi.cache == null || !"GET".equals(request.getMethod())
+                || (body != null && body.size() > 0) || !CgiResponseCache.enabled()) {
+            start(sink, route, request, errorPages, null);
+            return;
+        }
+
+        // registered before the lookup, so a close that comes first still finds it
+        Waiter waiter = new Waiter(sink, route, request, errorPages);
+        waiters.put(sink, waiter);
+        CgiResponseCache.Lookup hit = CgiResponseCache.lookup(cacheKey(route, request), waiter);
+        if (hit.outcome == CgiResponseCache.Outcome.WAIT) {
+            waiter.flight = hit.flight;
+        } else {
+            waiters.remove(sink, waiter);
+        }
+        switch (hit.outcome) {
+            case HIT:
+                sink.publish(fromCache(hit.entry, route, request));
+                break;
+            case PASS:
+                start(sink, route, request, errorPages, null);
+                break;
+            case LEAD:
+                try {
+                    start(sink, route, request, errorPages, hit.flight);
+                } catch (IOException | RuntimeException e) {
+                    CgiResponseCache.land(hit.flight, null);
+                    throw e;
+                }
+                break;
+            case WAIT:
+                break;
+        }
+    }
+
+    // flight is set when this run's output should be offered to the cache
+    private void start(ResponseSink sink, RouteConfig route, HttpRequest request,
+            Map<Integer, String> errorPages, CgiResponseCache.Flight flight) throws IOException {
+
         String reqPath = stripQuery(request.getPath());
         Path scriptPath = Paths.get(route.root, reqPath).normalize();
 
@@ -29,7 +104,10 @@ public class CGIHandler {
                 || !Files.exists(scriptPath)
                 || Files.isDirectory(scriptPath)) {
             System.out.println("[CGI] Script not found: " + scriptPath);
-            sendErrorResponse(clientKey, 404, "Not Found", "CGI script not found", errorPages.get(404));
+            if (flight != null) {
+                CgiResponseCache.land(flight, null);
+            }
+            sink.publish(HttpResponse.ErrorResponse(404, "Not Found", "CGI script not found", errorPages.get(404)));
             return;
         }
 
@@ -37,9 +115,7 @@ public class CGIHandler {
                 ? route.cgi.interpreter
                 : "python3";
 
-        ProcessBuilder pb = new ProcessBuilder(interpreter, "-u", scriptPath.toString());
-
-        Map<String, String> env = pb.environment();
+        Map<String, String> env = new HashMap<>();
         env.put("REQUEST_METHOD", request.getMethod());
         env.put("SCRIPT_NAME", reqPath);
         env.put("PATH_INFO", extractPathInfo(request.getPath(), reqPath));
@@ -49,188 +125,473 @@ public class CGIHandler {
             env.put("QUERY_STRING", qs);
         }
 
-        Path bodyFile = request.getBodyFile();
-        long contentLen = (bodyFile != null && Files.exists(bodyFile))
-                ? Files.size(bodyFile)
-                : 0;
+        RequestBody body = request.getBody();
+        long contentLen = body != null ? body.size() : 0;
         env.put("CONTENT_LENGTH", String.valueOf(contentLen));
 
-        String ct = request.getHeader("Content-Type");
+        String ct = request.getHeaders().get(HttpHeaders.CONTENT_TYPE);
         if (ct != null) {
             env.put("CONTENT_TYPE", ct);
         }
 
-        env.put("PYTHONUNBUFFERED", "1");
+        // the body stays readable for the script even if the connection moves on meanwhile
+        InputStream in = contentLen > 0 ? body.openStream() : null;
+        CGIStreamingContext ctx = new CGIStreamingContext(null, request, 0, sink, route, errorPages, in);
+        if (flight != null) {
+            ctx.flight = flight;
+            ctx.capture = new ByteArrayOutputStream();
+        }
 
-        Process process = pb.start();
+        Runnable run;
+        if (route.cgi != null && "scgi".equals(route.cgi.mode)) {
+            env.put("SCRIPT_FILENAME", scriptPath.toAbsolutePath().toString());
+            run = () -> runOnWorker(ctx, env, contentLen);
+        } else {
+            ProcessBuilder pb = new ProcessBuilder(interpreter, "-u", scriptPath.toString());
+            pb.environment().putAll(env);
+            pb.environment().put("PYTHONUNBUFFERED", "1");
+            pb.redirectError(ProcessBuilder.Redirect.INHERIT);
+            run = () -> runProcess(ctx, pb, scriptPath);
+        }
 
-        try {
-            OutputStream stdin = process.getOutputStream();
-            if (bodyFile != null && contentLen > 0 && contentLen < 1024 * 1024) {
-                byte[] bodyBytes = Files.readAllBytes(bodyFile);
-                stdin.write(bodyBytes);
+        // the slot is held from the start until complete() gives it back
+        ctx.ticket = new CgiLimiter.Ticket(route, () -> {
+            ctx.setStartTime(System.currentTimeMillis());
+            READERS.execute(run);
+        });
+        pendingCGI.put(sink, ctx);
+        if (!CgiLimiter.enter(ctx.ticket)) {
+            pendingCGI.remove(sink);
+            ctx.discardBody();
+            ctx.landFlight(null);
+            System.err.println("[CGI] Queue full, rejecting " + scriptPath);
+            sink.publish(busy(route, errorPages));
+        }
+    }
+
+    public void checkPendingCGI() {
+        Iterator<CGIContext> it = pendingCGI.values().iterator();
+        while (it.hasNext()) {
+            CGIContext rawCtx = it.next();
+            if (rawCtx instanceof CGIStreamingContext && checkPendingCGI((CGIStreamingContext) rawCtx)) {
+                it.remove();
             }
-            stdin.close();
-        } catch (IOException e) {
-            System.err.println("[CGI] Error writing stdin: " + e.getMessage());
         }
+    }
 
-        CGIStreamingContext ctx = new CGIStreamingContext(
-                process, request, System.currentTimeMillis()
-        );
-        pendingCGI.put(clientKey, ctx);
+    // runs on the loop: enforces the queue and run timeouts; true once the context is finished
+    private boolean checkPendingCGI(CGIStreamingContext ctx) {
+        long now = System.currentTimeMillis();
+        long startedAt = ctx.getStartTime();
+        if (startedAt == 0) {
+            if (!CgiLimiter.expire(ctx.ticket, now, ctx.route.cgi.queueTimeoutMs)) {
+                return false;
+            }
+            System.err.println("[CGI] Gave up waiting for a slot after " + (now - ctx.ticket.queuedAt) + "ms");
+            ctx.discardBody();
+            ctx.landFlight(null);
+            ctx.sink.publish(busy(ctx.route, ctx.errorPages));
+            return true;
+        }
 
-        clientKey.interestOps(0);
+        long elapsed = now - startedAt;
+        if (!ctx.timedOut && elapsed > cgiTimeout * 1000) {
+            // the reader sees EOF and answers with whatever the script wrote so far
+            System.err.println("[CGI] Timeout after " + elapsed + "ms");
+            ctx.timedOut = true;
+            ctx.abort();
+        }
+        return ctx.done;
+    }
 
-        System.out.println("[CGI] Started: " + scriptPath);
+    // pipe thread: copies the body into the script's stdin; a script that reads slowly only
+    // holds this thread, and one that exits early just ends the copy
+    private static void feedStdin(Process process, InputStream body) {
+        byte[] buf = STDIN_BUFFER.get();
+        long copied = 0;
+        try (InputStream in = body; OutputStream stdin = process.getOutputStream()) {
+            int n;
+            while ((n = in.read(buf)) != -1) {
+                stdin.write(buf, 0, n);
+                copied += n;
+            }
+        } catch (IOException e) {
+            System.err.println("[CGI] stdin closed after " + copied + " bytes: " + e.getMessage());
+        }
     }
 
-    public void checkPendingCGI(SelectionKey clientKey, Map<Integer, String> errorPages) {
-        CGIContext rawCtx = pendingCGI.get(clientKey);
+    // reader thread for pooled routes: waits for a worker, sends it the request and pumps its
+    // reply; the worker is handed back before the response is complete
+    private void runOnWorker(CGIStreamingContext ctx, Map<String, String> env, long contentLen) {
+        CgiWorkerPool pool = CgiWorkerPool.forRoute(ctx.route);
+        CgiWorkerPool.Worker worker = null;
+        InputStream in = ctx.takeBody();
+        try {
+            worker = pool.acquire();
+            if (worker == null) {
+                System.err.println("[CGI] No worker free within " + ctx.route.cgi.queueTimeoutMs + "ms");
+                ctx.response = busy(ctx.route, ctx.errorPages);
+                return;
+            }
+            ctx.worker = worker;
+            if (ctx.aborted) {
+                ctx.response = HttpResponse.ErrorResponse(504, "Gateway Timeout", "CGI timeout", ctx.errorPages.get(504));
+                pool.release(worker, true);
+                return;
+            }
 
-        if (rawCtx == null || !(rawCtx instanceof CGIStreamingContext)) {
-            return;
+            InputStream out = worker.exchange(env, in, contentLen);
+            closeQuietly(in);
+            in = null;
+            boolean clean = pump(ctx, out);
+            worker.close();
+            pool.release(worker, clean);
+        } catch (IOException e) {
+            System.err.println("[CGI] Worker error: " + e.getMessage());
+            if (worker != null) {
+                pool.release(worker, false);
+            }
+            ctx.response = HttpResponse.ErrorResponse(502, "Bad Gateway", "CGI worker failed", ctx.errorPages.get(502));
+        } catch (InterruptedException e) {
+            ctx.response = HttpResponse.ErrorResponse(500, "Internal Server Error", "CGI Error", ctx.errorPages.get(500));
+        } finally {
+            closeQuietly(in);
+            complete(ctx);
         }
+    }
 
-        CGIStreamingContext ctx = (CGIStreamingContext) rawCtx;
-        Process process = ctx.getProcess();
-        long elapsed = System.currentTimeMillis() - ctx.getStartTime();
+    // pipe thread for forked scripts: starts the interpreter, feeds stdin and pumps stdout
+    private void runProcess(CGIStreamingContext ctx, ProcessBuilder pb, Path scriptPath) {
+        InputStream in = ctx.takeBody();
+        try {
+            if (ctx.aborted) {
+                return;
+            }
+            Process process = pb.start();
+            ctx.setProcess(process);
+            if (ctx.aborted) {
+                // the client left while the process was starting
+                process.destroyForcibly();
+            }
+            if (in != null) {
+                InputStream stdin = in;
+                in = null;
+                READERS.execute(() -> feedStdin(process, stdin));
+            } else {
+                process.getOutputStream().close();
+            }
+            System.out.println("[CGI] Started: " + scriptPath);
+            pump(ctx, process.getInputStream());
+        } catch (IOException e) {
+            System.err.println("[CGI] Start failed: " + e.getMessage());
+            ctx.response = HttpResponse.ErrorResponse(500, "Internal Server Error",
+                    "CGI execution failed: " + e.getMessage(), ctx.errorPages.get(500));
+        } finally {
+            closeQuietly(in);
+            complete(ctx);
+        }
+    }
 
-        // Timeout check
-        if (elapsed > cgiTimeout * 1000) {
-            System.err.println("[CGI] Timeout after " + elapsed + "ms");
-            process.destroyForcibly();
+    // 503 for a request that found no free slot or worker in time
+    private static HttpResponse busy(RouteConfig route, Map<Integer, String> errorPages) {
+        HttpResponse res = HttpResponse.ErrorResponse(503, "Service Unavailable", "CGI capacity exhausted", errorPages.get(503));
+        res.setHeaders("Retry-After", String.valueOf(Math.max(1, (route.cgi.queueTimeoutMs + 999) / 1000)));
+        return res;
+    }
 
-            String output = ctx.getCollectedOutput();
-            if (!output.isEmpty()) {
-                sendSimpleResponse(clientKey, output);
-            } else {
-                sendErrorResponse(clientKey, 504, "Gateway Timeout", "CGI timeout", errorPages.get(504));
+    private static void closeQuietly(InputStream in) {
+        if (in != null) {
+            try {
+                in.close();
+            } catch (IOException ignored) {
             }
+        }
+    }
 
-            pendingCGI.remove(clientKey);
-            return;
+    // a response that was not streamed goes out now, whole; the slot goes to the next in line
+    private static void complete(CGIStreamingContext ctx) {
+        CgiLimiter.leave(ctx.ticket);
+        if (ctx.flight != null) {
+            ctx.landFlight(ctx.outputComplete && !ctx.aborted && ctx.capture != null
+                    ? cacheEntry(ctx.route, ctx.capture.toByteArray())
+                    : null);
         }
+        if (ctx.response != null) {
+            ctx.sink.publish(ctx.response);
+        }
+        ctx.done = true;
+    }
 
-        try {
-            // Read available output
-            ctx.readAvailableOutput();
-
-            // Check if process finished
-            if (!process.isAlive()) {
-                System.out.println("[CGI] Process finished (exit code: " + process.exitValue() + ")");
-                ctx.readRemainingOutput();
-
-                String output = ctx.getCollectedOutput();
-                System.out.println("[CGI] Total output: " + output.length() + " bytes");
-                
-                HttpResponse response = parseCGIResponse(output);
-                
-                // ✅ مهم جداً: إيقاف streaming mode قبل الإرسال
-                markStreamingFinished(clientKey);
-                
-                sendResponse(clientKey, response);
-                pendingCGI.remove(clientKey);
-                
-                System.out.println("[CGI] Response sent");
+    // reader thread: collects stdout until the CGI header block is complete, then (for HTTP/1.1)
+    // publishes a chunked response and writes the rest of the output as it is produced; true
+    // when the output ran to its end without being cut short
+    private boolean pump(CGIStreamingContext ctx, InputStream source) {
+        boolean stream = "HTTP/1.1".equals(ctx.getRequest().getVersion());
+        ByteArrayOutputStream head = new ByteArrayOutputStream();
+        HttpResponse streaming = null;
+        GzipEncoder gzip = null;
+        long total = 0;
+
+        boolean clean = false;
+
+        try (InputStream stdout = source) {
+            byte[] buf = new byte[8192];
+            int n;
+            while (true) {
+                n = stdout.read(buf);
+                if (n == -1) {
+                    clean = true;
+                    break;
+                }
+                total += n;
+                if (ctx.capture != null) {
+                    if (total > CgiResponseCache.maxEntryBytes()) {
+                        ctx.capture = null;
+                    } else {
+                        ctx.capture.write(buf, 0, n);
+                    }
+                }
+                if (streaming != null) {
+                    if (!forward(ctx, gzip, buf, 0, n)) {
+                        break;
+                    }
+                    continue;
+                }
+
+                head.write(buf, 0, n);
+                if (!stream) {
+                    continue;
+                }
+                byte[] out = head.toByteArray();
+                int bodyStart = bodyStart(out);
+                if (bodyStart == -1 && out.length <= MAX_CGI_HEADER_BYTES) {
+                    continue;
+                }
+
+                if (bodyStart == -1) {
+                    streaming = plainTextResponse();
+                    bodyStart = 0;
+                } else {
+                    streaming = parseCGIHeaders(out, bodyStart);
+                }
+                gzip = startCompression(ctx, streaming);
+                streaming.enableChunked();
+                ctx.sink.publish(streaming);
+                if (!forward(ctx, gzip, out, bodyStart, out.length - bodyStart)) {
+                    break;
+                }
+            }
+
+            // a killed or dropped run must not end its body as if it were whole
+            clean = clean && !ctx.timedOut && !ctx.aborted;
+            if (streaming != null && !clean) {
+                ctx.sink.abort();
+            } else if (streaming != null) {
+                if (gzip != null) {
+                    byte[] tail = gzip.finish();
+                    ctx.sink.write(tail, 0, tail.length);
+                }
+                ctx.sink.end();
+            } else if (head.size() == 0 && ctx.timedOut) {
+                ctx.response = HttpResponse.ErrorResponse(504, "Gateway Timeout", "CGI timeout", ctx.errorPages.get(504));
+            } else {
+                HttpResponse response = parseCGIResponse(head.toByteArray());
+                compressIfAccepted(ctx.route, ctx.getRequest(), response);
+                ctx.response = response;
             }
+            ctx.outputComplete = clean;
+            System.out.println("[CGI] Output complete: " + total + " bytes");
 
         } catch (IOException e) {
             System.err.println("[CGI] Error: " + e.getMessage());
-            e.printStackTrace();
-            sendErrorResponse(clientKey, 500, "Internal Server Error", "CGI Error", errorPages.get(500));
-            pendingCGI.remove(clientKey);
+            if (streaming != null) {
+                ctx.sink.abort();
+            } else {
+                ctx.response = HttpResponse.ErrorResponse(500, "Internal Server Error", "CGI Error", ctx.errorPages.get(500));
+            }
+        } catch (InterruptedException e) {
+            ctx.abort();
+            if (streaming != null) {
+                ctx.sink.abort();
+            } else {
+                ctx.response = HttpResponse.ErrorResponse(500, "Internal Server Error", "CGI Error", ctx.errorPages.get(500));
+            }
         }
+        return clean;
+    }
+
+    // false once the response was dropped; the script is stopped rather than left writing
+    private static boolean forward(CGIStreamingContext ctx, GzipEncoder gzip,
+            byte[] data, int off, int len) throws InterruptedException {
+        if (len == 0) {
+            return true;
+        }
+        boolean open;
+        if (gzip != null) {
+            byte[] packed = gzip.update(data, off, len, true);
+            open = ctx.sink.write(packed, 0, packed.length);
+        } else {
+            open = ctx.sink.write(data, off, len);
+        }
+        if (!open) {
+            ctx.abort();
+        }
+        return open;
     }
 
     // ================= CGI Context =================
     static class CGIStreamingContext extends CGIContext {
 
-        private final StringBuilder outputBuffer = new StringBuilder();
-        private final InputStream stdout;
-        private final InputStream stderr;
-
-        public CGIStreamingContext(Process process, HttpRequest request, long startTime) {
+        final ResponseSink sink;
+        final RouteConfig route;
+        final Map<Integer, String> errorPages;
+
+        // the whole response when the output is not streamed; reader thread only
+        HttpResponse response;
+        // the loop forgets the context once done and stops it if timedOut
+        volatile boolean done;
+        volatile boolean timedOut;
+
+        // set for pooled routes once a worker has taken the request
+        volatile CgiWorkerPool.Worker worker;
+        volatile boolean aborted;
+        CgiLimiter.Ticket ticket;
+        // set when the output is offered to the cache: the raw output so far, dropped once too big
+        CgiResponseCache.Flight flight;
+        ByteArrayOutputStream capture;
+        boolean outputComplete;
+        // the request body, owned by whoever takes it: the script's feeder or a rejection path
+        private final AtomicReference<InputStream> body;
+
+        public CGIStreamingContext(Process process, HttpRequest request, long startTime,
+                ResponseSink sink, RouteConfig route, Map<Integer, String> errorPages, InputStream body) {
             super(process, request, startTime);
-            this.stdout = process.getInputStream();
-            this.stderr = process.getErrorStream();
-        }
-
-        public void readAvailableOutput() throws IOException {
-            if (stdout.available() > 0) {
-                byte[] buffer = new byte[stdout.available()];
-                int read = stdout.read(buffer);
-                if (read > 0) {
-                    String data = new String(buffer, 0, read, StandardCharsets.UTF_8);
-                    outputBuffer.append(data);
-                    System.out.print(data);
-                }
-            }
+            this.body = new AtomicReference<>(body);
+            this.route = route;
+            this.sink = sink;
+            this.errorPages = errorPages != null ? errorPages : new HashMap<>();
+        }
 
-            if (stderr.available() > 0) {
-                byte[] buffer = new byte[stderr.available()];
-                int read = stderr.read(buffer);
-                if (read > 0) {
-                    System.err.print("[CGI stderr] " + new String(buffer, 0, read, StandardCharsets.UTF_8));
-                }
-            }
+        InputStream takeBody() {
+            return body.getAndSet(null);
         }
 
-        public void readRemainingOutput() throws IOException {
-            byte[] buffer = new byte[8192];
-            int read;
+        void discardBody() {
+            closeQuietly(takeBody());
+        }
 
-            while ((read = stdout.read(buffer)) != -1) {
-                outputBuffer.append(new String(buffer, 0, read, StandardCharsets.UTF_8));
+        // requests waiting on this run get the entry, or run the script themselves on null
+        void landFlight(CgiResponseCache.Entry entry) {
+            if (flight != null) {
+                CgiResponseCache.land(flight, entry);
             }
         }
 
-        public String getCollectedOutput() {
-            return outputBuffer.toString();
+        // stops the script; a pooled worker is killed too, since it may be anywhere in the
+        // request, and the pool starts a replacement
+        void abort() {
+            aborted = true;
+            Process p = getProcess();
+            if (p != null && p.isAlive()) {
+                System.out.println("[CGI] Destroying process");
+                p.destroyForcibly();
+            }
+            CgiWorkerPool.Worker w = worker;
+            if (w != null) {
+                w.kill();
+            }
         }
     }
 
-    // ================= Helper Methods =================
-    
-    /**
-     * ✅ إيقاف streaming mode في ConnCtx
-     */
-    private void markStreamingFinished(SelectionKey key) {
-        Object attachment = key.attachment();
-        if (attachment != null) {
+    // a request parked on a flight; whatever the flight lands with is handled on this handler's
+    // loop, and only if the connection has not dropped the request in the meantime
+    private final class Waiter implements Consumer<CgiResponseCache.Entry> {
+
+        final ResponseSink sink;
+        final RouteConfig route;
+        final HttpRequest request;
+        final Map<Integer, String> errorPages;
+        volatile CgiResponseCache.Flight flight;
+
+        Waiter(ResponseSink sink, RouteConfig route, HttpRequest request, Map<Integer, String> errorPages) {
+            this.sink = sink;
+            this.route = route;
+            this.request = request;
+            this.errorPages = errorPages;
+        }
+
+        @Override
+        public void accept(CgiResponseCache.Entry entry) {
+            loop.execute(() -> deliver(entry));
+        }
+
+        private void deliver(CgiResponseCache.Entry entry) {
+            if (!waiters.remove(sink, this)) {
+                return;
+            }
             try {
-                java.lang.reflect.Field streamingField = attachment.getClass().getDeclaredField("isStreaming");
-                streamingField.setAccessible(true);
-                streamingField.set(attachment, false);
-                
-                System.out.println("[CGI] Streaming mode disabled");
-            } catch (Exception e) {
-                System.err.println("[CGI] Failed to disable streaming: " + e.getMessage());
+                if (entry != null && entry.output != null) {
+                    sink.publish(fromCache(entry, route, request));
+                } else {
+                    // the run was not stored, so this request runs the script itself
+                    start(sink, route, request, errorPages, null);
+                }
+            } catch (IOException e) {
+                sink.publish(HttpResponse.ErrorResponse(500, "Internal Server Error", "CGI Error", errorPages.get(500)));
             }
         }
     }
-    
-    private HttpResponse parseCGIResponse(String out) {
-        int sep = out.indexOf("\n\n");
-        if (sep == -1) {
-            sep = out.indexOf("\r\n\r\n");
+
+    // ================= Helper Methods =================
+
+    // offset just past the blank line that ends the CGI header block, or -1
+    private static int bodyStart(byte[] out) {
+        if (out.length > 0 && out[0] == '\n') {
+            return 1;
+        }
+        if (out.length > 1 && out[0] == '\r' && out[1] == '\n') {
+            return 2;
         }
+        for (int i = 0; i + 1 < out.length; i++) {
+            if (out[i] != '\n') {
+                continue;
+            }
+            if (out[i + 1] == '\n') {
+                return i + 2;
+            }
+            if (out[i + 1] == '\r' && i + 2 < out.length && out[i + 2] == '\n') {
+                return i + 3;
+            }
+        }
+        return -1;
+    }
+
+    private static HttpResponse plainTextResponse() {
+        HttpResponse res = new HttpResponse(200, "OK");
+        res.setHeaders("Content-Type", "text/plain; charset=UTF-8");
+        return res;
+    }
 
-        if (sep == -1) {
+    // the whole output is in; the body goes out with a Content-Length
+    private HttpResponse parseCGIResponse(byte[] out) {
+        int bodyStart = bodyStart(out);
+        if (bodyStart == -1) {
             // No headers found - treat as plain text
-            HttpResponse res = new HttpResponse(200, "OK");
-            res.setHeaders("Content-Type", "text/plain; charset=UTF-8");
-            res.setBody(out.getBytes(StandardCharsets.UTF_8));
+            HttpResponse res = plainTextResponse();
+            res.setBody(out);
             System.out.println("[CGI] No headers found, using plain text");
             return res;
         }
 
-        String headerPart = out.substring(0, sep);
-        String body = out.substring(sep + (out.charAt(sep) == '\r' ? 4 : 2));
+        HttpResponse res = parseCGIHeaders(out, bodyStart);
+        res.setBody(Arrays.copyOfRange(out, bodyStart, out.length));
+        System.out.println("[CGI] Body size: " + (out.length - bodyStart) + " bytes");
+        return res;
+    }
 
+    private static HttpResponse parseCGIHeaders(byte[] out, int bodyStart) {
         HttpResponse res = new HttpResponse(200, "OK");
-
-        // Parse CGI headers
+        String headerPart = new String(out, 0, bodyStart, StandardCharsets.ISO_8859_1);
         for (String line : headerPart.split("[\r\n]+")) {
             if (line.isEmpty()) {
                 continue;
@@ -239,67 +600,139 @@ public class CGIHandler {
             if (idx != -1) {
                 String key = line.substring(0, idx).trim();
                 String value = line.substring(idx + 1).trim();
-                res.setHeaders(key, value);
+                res.addHeader(key, value);
                 System.out.println("[CGI] Header: " + key + ": " + value);
             }
         }
-
-        res.setBody(body.getBytes(StandardCharsets.UTF_8));
-        System.out.println("[CGI] Body size: " + body.length() + " bytes");
         return res;
     }
 
-    private void sendResponse(SelectionKey key, HttpResponse response) {
-        Object attachment = key.attachment();
-        if (attachment != null) {
-            try {
-                java.lang.reflect.Field field = attachment.getClass().getDeclaredField("writeBuf");
-                field.setAccessible(true);
-                
-                java.nio.ByteBuffer buf = response.toByteBuffer();
-                field.set(attachment, buf);
-                
-                System.out.println("[CGI] WriteBuf set: " + buf.remaining() + " bytes");
-
-                key.interestOps(SelectionKey.OP_WRITE);
-                System.out.println("[CGI] OP_WRITE enabled");
-                
-            } catch (Exception e) {
-                System.err.println("[CGI] Failed to send response: " + e.getMessage());
-                e.printStackTrace();
-            }
+    private static void compressIfAccepted(RouteConfig route, HttpRequest request, HttpResponse response) {
+        HttpHeaders headers = response.getHeaders();
+        if (headers.contains("Content-Encoding")
+                || !ContentEncoding.shouldCompress(route,
+                        headers.get(HttpHeaders.CONTENT_TYPE), response.getBodyLength())) {
+            return;
         }
+        if (!ContentEncoding.acceptsGzip(request)) {
+            headers.set("Vary", "Accept-Encoding");
+            return;
+        }
+        // fresh output every time, so favour speed over ratio
+        response.encodeBodyGzip(Deflater.BEST_SPEED);
     }
 
-    private void sendSimpleResponse(SelectionKey key, String output) {
-        HttpResponse res = new HttpResponse(200, "OK");
-        res.setHeaders("Content-Type", "text/plain; charset=UTF-8");
-        res.setBody(output.getBytes(StandardCharsets.UTF_8));
-        
-        markStreamingFinished(key);
-        sendResponse(key, res);
+    // a streamed body's size is unknown up front, so only its type decides; every read is flushed
+    private static GzipEncoder startCompression(CGIStreamingContext ctx, HttpResponse response) {
+        HttpHeaders headers = response.getHeaders();
+        if (headers.contains("Content-Encoding")
+                || !ContentEncoding.shouldCompress(ctx.route, headers.get(HttpHeaders.CONTENT_TYPE), Long.MAX_VALUE)) {
+            return null;
+        }
+        headers.set("Vary", "Accept-Encoding");
+        if (!ContentEncoding.acceptsGzip(ctx.getRequest())) {
+            return null;
+        }
+        headers.set("Content-Encoding", "gzip");
+        return new GzipEncoder(Deflater.BEST_SPEED);
     }
 
-    private void sendErrorResponse(SelectionKey key, int code, String message, String detail, String errorPage) {
-        HttpResponse response = HttpResponse.ErrorResponse(code, message, detail, errorPage);
-        
-        markStreamingFinished(key);
-        sendResponse(key, response);
+    public boolean hasAnyPending() {
+        return !pendingCGI.isEmpty();
     }
 
-    public boolean hasPending(SelectionKey key) {
-        return pendingCGI.containsKey(key);
+    public boolean hasPending(ResponseSink sink) {
+        return pendingCGI.containsKey(sink);
     }
 
-    public void cleanup(SelectionKey key) {
-        CGIContext ctx = pendingCGI.remove(key);
-        if (ctx != null) {
-            Process p = ctx.getProcess();
-            if (p.isAlive()) {
-                System.out.println("[CGI] Destroying process");
-                p.destroyForcibly();
+    public void cleanup(ResponseSink sink) {
+        Waiter w = waiters.remove(sink);
+        if (w != null && w.flight != null) {
+            CgiResponseCache.cancel(w.flight, w);
+        }
+        CGIContext ctx = pendingCGI.remove(sink);
+        if (ctx instanceof CGIStreamingContext) {
+            CGIStreamingContext c = (CGIStreamingContext) ctx;
+            c.abort();
+            CgiLimiter.leave(c.ticket);
+            c.discardBody();
+            c.landFlight(null);
+        }
+    }
+
+    // script path and query string, plus the value of each header the route varies on
+    private static String cacheKey(RouteConfig route, HttpRequest request) {
+        StringBuilder key = new StringBuilder(route.root).append('|').append(request.getPath());
+        for (String name : route.cgi.cache.vary) {
+            String v = request.getHeaders().get(name);
+            key.append('\0').append(name.toLowerCase()).append('=').append(v != null ? v : "");
+        }
+        return key.toString();
+    }
+
+    // what the script's own headers allow: a non-200 Status, Set-Cookie, no-store, private,
+    // no-cache and a Vary the key does not cover all rule storing out; max-age (or s-maxage) overrides the route's ttl_ms.
+    // Output that may not be stored becomes a pass marker for the same time, at least a second
+    private static CgiResponseCache.Entry cacheEntry(RouteConfig route, byte[] out) {
+        long now = System.currentTimeMillis();
+        long ttlMs = route.cgi.cache.ttlMs;
+        boolean storable = true;
+
+        int bodyStart = bodyStart(out);
+        if (bodyStart != -1) {
+            HttpHeaders headers = parseCGIHeaders(out, bodyStart).getHeaders();
+            String status = headers.get("Status");
+            if (headers.contains("Set-Cookie")
+                    || (status != null && !status.startsWith("200"))) {
+                storable = false;
+            }
+            String cc = headers.get("Cache-Control");
+            if (cc != null) {
+                for (String d : cc.toLowerCase().split(",")) {
+                    d = d.trim();
+                    if (d.equals("no-store") || d.equals("private") || d.equals("no-cache")) {
+                        storable = false;
+                    } else if (d.startsWith("max-age=") || d.startsWith("s-maxage=")) {
+                        try {
+                            ttlMs = Long.parseLong(d.substring(d.indexOf('=') + 1).trim()) * 1000;
+                        } catch (NumberFormatException e) {
+                            storable = false;
+                        }
+                    }
+                }
+            }
+            String vary = headers.get("Vary");
+            if (vary != null) {
+                for (String h : vary.split(",")) {
+                    h = h.trim();
+                    if (!h.isEmpty() && !h.equalsIgnoreCase("Accept-Encoding") && !varies(route, h)) {
+                        storable = false;
+                    }
+                }
             }
         }
+
+        if (storable && ttlMs > 0) {
+            return new CgiResponseCache.Entry(out, now, now + ttlMs);
+        }
+        return new CgiResponseCache.Entry(null, now, now + Math.max(ttlMs, 1000));
+    }
+
+    private static boolean varies(RouteConfig route, String header) {
+        for (String name : route.cgi.cache.vary) {
+            if (name.equalsIgnoreCase(header)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    // a stored output replayed as a fresh response; gzip still follows this request's Accept-Encoding
+    private HttpResponse fromCache(CgiResponseCache.Entry entry, RouteConfig route, HttpRequest request) {
+        HttpResponse response = parseCGIResponse(entry.output);
+        response.setHeaders("Age", String.valueOf((System.currentTimeMillis() - entry.storedAt) / 1000));
+        compressIfAccepted(route, request, response);
+        return response;
     }
 
     private static String stripQuery(String path) {
@@ -0,0 +1,237 @@
+package handlers;
+
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeSet;
+import utils.json.AppConfig.RouteConfig;
+
+/**
+ * Admission control for CGI scripts, shared by every event loop. A script starts when both the
+ * global cap (cgi_limits.max_concurrent) and its route's cap (cgi.max_concurrent) have room;
+ * otherwise it waits in one queue ordered by route priority, then arrival, so equal-priority
+ * routes are served first come first served. A request that finds the queue full, or waits past
+ * its route's queue_timeout_ms, is answered with 503 and Retry-After by CGIHandler.
+ */
+public final class CgiLimiter {
+
+    private static final long REPORT_INTERVAL_MS = 10_000;
+
+    static final class Ticket {
+
+        final RouteConfig route;
+        final int priority;
+        final Runnable start;
+        long seq;
+        long queuedAt;
+        // guarded by LOCK
+        boolean waiting;
+        boolean running;
+
+        Ticket(RouteConfig route, Runnable start) {
+            this.route = route;
+            this.priority = route.cgi != null ? route.cgi.priority : 0;
+            this.start = start;
+        }
+    }
+
+    private static final Comparator<Ticket> ORDER =
+            Comparator.<Ticket>comparingInt(t -> -t.priority).thenComparingLong(t -> t.seq);
+
+    private static final Object LOCK = new Object();
+    private static int maxConcurrent = 32;
+    private static int maxQueue = 128;
+
+    private static final TreeSet<Ticket> waiting = new TreeSet<>(ORDER);
+    private static final Map<RouteConfig, Integer> runningByRoute = new HashMap<>();
+    private static final Map<RouteConfig, Integer> waitingByRoute = new HashMap<>();
+    private static int running = 0;
+    private static long nextSeq = 0;
+
+    // metrics, guarded by LOCK
+    private static long admitted = 0;
+    private static long queued = 0;
+    private static long rejected = 0;
+    private static long expired = 0;
+    private static long waited = 0;
+    private static long totalWaitMs = 0;
+    private static long maxWaitMs = 0;
+    private static int peakWaiting = 0;
+    private static long lastReportAt = System.currentTimeMillis();
+    private static long lastReportAdmitted = 0;
+    private static long lastReportRejected = 0;
+
+    private CgiLimiter() {
+    }
+
+    public static void configure(int maxConcurrent, int maxQueue) {
+        List<Ticket> ready;
+        synchronized (LOCK) {
+            CgiLimiter.maxConcurrent = maxConcurrent;
+            CgiLimiter.maxQueue = maxQueue;
+            ready = drain();
+        }
+        startAll(ready);
+    }
+
+    // starts the ticket now or queues it; false when the queue is full
+    static boolean enter(Ticket t) {
+        boolean startNow;
+        synchronized (LOCK) {
+            t.seq = nextSeq++;
+            t.queuedAt = System.currentTimeMillis();
+            startNow = fits(t.route);
+            if (startNow) {
+                admit(t);
+            } else {
+                int routeQueue = t.route.cgi != null ? t.route.cgi.maxQueue : 0;
+                if (waiting.size() >= maxQueue
+                        || (routeQueue > 0 && count(waitingByRoute, t.route) >= routeQueue)) {
+                    rejected++;
+                    report();
+                    return false;
+                }
+                t.waiting = true;
+                waiting.add(t);
+                bump(waitingByRoute, t.route, 1);
+                queued++;
+                peakWaiting = Math.max(peakWaiting, waiting.size());
+            }
+        }
+        if (startNow) {
+            t.start.run();
+        }
+        return true;
+    }
+
+    // gives back a running ticket's slot, or drops a waiting one; safe to call more than once
+    static void leave(Ticket t) {
+        if (t == null) {
+            return;
+        }
+        List<Ticket> ready;
+        synchronized (LOCK) {
+            if (t.waiting) {
+                unqueue(t);
+                return;
+            }
+            if (!t.running) {
+                return;
+            }
+            t.running = false;
+            running--;
+            bump(runningByRoute, t.route, -1);
+            ready = drain();
+            report();
+        }
+        startAll(ready);
+    }
+
+    // true when the ticket was still waiting after timeoutMs and has been dropped
+    static boolean expire(Ticket t, long now, long timeoutMs) {
+        synchronized (LOCK) {
+            if (!t.waiting || now - t.queuedAt <= timeoutMs) {
+                return false;
+            }
+            unqueue(t);
+            expired++;
+            report();
+            return true;
+        }
+    }
+
+    // running / waiting counts and totals since start
+    public static String summary() {
+        synchronized (LOCK) {
+            return "running=" + running + "/" + maxConcurrent
+                    + " waiting=" + waiting.size() + "/" + maxQueue
+                    + " peak_waiting=" + peakWaiting
+                    + " admitted=" + admitted
+                    + " queued=" + queued
+                    + " rejected=" + rejected
+                    + " expired=" + expired
+                    + " avg_wait_ms=" + (waited > 0 ? totalWaitMs / waited : 0)
+                    + " max_wait_ms=" + maxWaitMs;
+        }
+    }
+
+    private static boolean fits(RouteConfig route) {
+        if (running >= maxConcurrent) {
+            return false;
+        }
+        int routeMax = route.cgi != null ? route.cgi.maxConcurrent : 0;
+        return routeMax <= 0 || count(runningByRoute, route) < routeMax;
+    }
+
+    private static void admit(Ticket t) {
+        t.running = true;
+        running++;
+        bump(runningByRoute, t.route, 1);
+        admitted++;
+    }
+
+    // every waiter that fits now, in queue order; a route at its own cap does not block others
+    private static List<Ticket> drain() {
+        List<Ticket> ready = new ArrayList<>();
+        if (waiting.isEmpty()) {
+            return ready;
+        }
+        long now = System.currentTimeMillis();
+        for (Ticket t : new ArrayList<>(waiting)) {
+            if (running >= maxConcurrent) {
+                break;
+            }
+            if (!fits(t.route)) {
+                continue;
+            }
+            unqueue(t);
+            admit(t);
+            long wait = now - t.queuedAt;
+            waited++;
+            totalWaitMs += wait;
+            maxWaitMs = Math.max(maxWaitMs, wait);
+            ready.add(t);
+        }
+        return ready;
+    }
+
+    private static void startAll(List<Ticket> ready) {
+        for (Ticket t : ready) {
+            t.start.run();
+        }
+    }
+
+    private static void unqueue(Ticket t) {
+        t.waiting = false;
+        waiting.remove(t);
+        bump(waitingByRoute, t.route, -1);
+    }
+
+    private static int count(Map<RouteConfig, Integer> counts, RouteConfig route) {
+        return counts.getOrDefault(route, 0);
+    }
+
+    private static void bump(Map<RouteConfig, Integer> counts, RouteConfig route, int delta) {
+        int n = count(counts, route) + delta;
+        if (n <= 0) {
+            counts.remove(route);
+        } else {
+            counts.put(route, n);
+        }
+    }
+
+    // the log is the only metrics sink here; a line at most every REPORT_INTERVAL_MS when busy
+    private static void report() {
+        long now = System.currentTimeMillis();
+        if (now - lastReportAt < REPORT_INTERVAL_MS
+                || (admitted == lastReportAdmitted && rejected == lastReportRejected)) {
+            return;
+        }
+        lastReportAt = now;
+        lastReportAdmitted = admitted;
+        lastReportRejected = rejected;
+        System.out.println("[CGI] limiter " + summary());
+    }
+}
@@ -0,0 +1,167 @@
+package handlers;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.function.Consumer;
+
+/**
+ * Raw output of CGI scripts on routes with cgi.cache, shared by every event loop. Entries are
+ * keyed by script, query string and the route's vary headers, expire after the script's max-age
+ * (or the route's ttl_ms), and are evicted least recently used first once cgi_cache_max_bytes is
+ * exceeded. A miss starts a flight: requests for the same key that arrive meanwhile wait for it
+ * instead of running the script again. Keys whose output may not be stored get a short-lived
+ * pass marker, so later requests for them run side by side rather than one flight at a time.
+ */
+public final class CgiResponseCache {
+
+    static final class Entry {
+
+        final byte[] output; // null for a pass marker
+        final long storedAt;
+        final long expiresAt;
+        long footprint; // output plus key, so pass markers count against the budget too
+
+        Entry(byte[] output, long storedAt, long expiresAt) {
+            this.output = output;
+            this.storedAt = storedAt;
+            this.expiresAt = expiresAt;
+        }
+    }
+
+    static final class Flight {
+
+        private final String key;
+        // guarded by the cache lock; null once the flight has landed
+        private List<Consumer<Entry>> waiters = new ArrayList<>();
+
+        private Flight(String key) {
+            this.key = key;
+        }
+    }
+
+    enum Outcome {
+        HIT, // serve entry
+        PASS, // run the script without coalescing
+        LEAD, // run the script for flight; others may wait on it
+        WAIT // the waiter is called when the running flight lands
+    }
+
+    static final class Lookup {
+
+        final Outcome outcome;
+        final Entry entry;
+        final Flight flight;
+
+        private Lookup(Outcome outcome, Entry entry, Flight flight) {
+            this.outcome = outcome;
+            this.entry = entry;
+            this.flight = flight;
+        }
+    }
+
+    private static long maxBytes = 16L * 1024 * 1024;
+
+    // access-ordered, so iteration starts at the least recently used entry; guarded by entries
+    private static final LinkedHashMap<String, Entry> entries = new LinkedHashMap<>(64, 0.75f, true);
+    private static final Map<String, Flight> flights = new LinkedHashMap<>();
+    private static long totalBytes = 0;
+
+    private CgiResponseCache() {
+    }
+
+    public static void configure(long maxBytes) {
+        synchronized (entries) {
+            CgiResponseCache.maxBytes = maxBytes;
+            evict();
+        }
+    }
+
+    static boolean enabled() {
+        synchronized (entries) {
+            return maxBytes > 0;
+        }
+    }
+
+    // outputs larger than this are streamed as usual but not kept
+    static long maxEntryBytes() {
+        synchronized (entries) {
+            return maxBytes / 8;
+        }
+    }
+
+    static Lookup lookup(String key, Consumer<Entry> waiter) {
+        long now = System.currentTimeMillis();
+        synchronized (entries) {
+            Entry e = entries.get(key);
+            if (e != null && e.expiresAt > now) {
+                return new Lookup(e.output != null ? Outcome.HIT : Outcome.PASS, e, null);
+            }
+            if (e != null) {
+                remove(key);
+            }
+            Flight f = flights.get(key);
+            if (f != null) {
+                f.waiters.add(waiter);
+                return new Lookup(Outcome.WAIT, null, f);
+            }
+            f = new Flight(key);
+            flights.put(key, f);
+            return new Lookup(Outcome.LEAD, null, f);
+        }
+    }
+
+    // stores entry (if any) and hands it to every waiter; null tells them to run the script
+    // themselves. Only the first call for a flight has any effect
+    static void land(Flight f, Entry entry) {
+        List<Consumer<Entry>> waiters;
+        synchronized (entries) {
+            if (f.waiters == null) {
+                return;
+            }
+            waiters = f.waiters;
+            f.waiters = null;
+            flights.remove(f.key, f);
+            if (entry != null) {
+                entry.footprint = (entry.output != null ? entry.output.length : 0) + 2L * f.key.length() + 64;
+            }
+            if (entry != null && entry.footprint <= maxBytes / 8) {
+                remove(f.key);
+                entries.put(f.key, entry);
+                totalBytes += entry.footprint;
+                evict();
+            }
+        }
+        for (Consumer<Entry> w : waiters) {
+            w.accept(entry);
+        }
+    }
+
+    // a waiter whose request went away is not called when the flight lands
+    static void cancel(Flight f, Consumer<Entry> waiter) {
+        synchronized (entries) {
+            if (f.waiters != null) {
+                f.waiters.remove(waiter);
+            }
+        }
+    }
+
+    private static void remove(String key) {
+        Entry old = entries.remove(key);
+        if (old != null) {
+            totalBytes -= old.footprint;
+        }
+    }
+
+    // expired entries go on their next lookup or, unused, by age like any other
+    private static void evict() {
+        Iterator<Map.Entry<String, Entry>> it = entries.entrySet().iterator();
+        while (it.hasNext() && (totalBytes > maxBytes || maxBytes <= 0)) {
+            Entry e = it.next().getValue();
+            it.remove();
+            totalBytes -= e.footprint;
+        }
+    }
+}
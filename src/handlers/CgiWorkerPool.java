@@ -0,0 +1,302 @@
+package handlers;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.StandardProtocolFamily;
+import java.net.UnixDomainSocketAddress;
+import java.nio.channels.Channels;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import utils.json.AppConfig.CgiConfig;
+import utils.json.AppConfig.RouteConfig;
+
+/**
+ * Long-lived CGI workers for routes with cgi.mode "scgi". A worker is the route's interpreter
+ * running the bundled SCGI runner on its own Unix domain socket, one request at a time, so a
+ * request costs a local connect instead of a fork/exec and an interpreter start. The pool keeps
+ * workers_min warm, grows up to workers_max, recycles a worker after worker_max_requests, and
+ * lets requests wait up to queue_timeout_ms for a free one.
+ */
+final class CgiWorkerPool {
+
+    private static final long HEALTH_INTERVAL_MS = 2000;
+    private static final long START_TIMEOUT_MS = 5000;
+
+    private static final Map<String, CgiWorkerPool> POOLS = new ConcurrentHashMap<>();
+    private static final ScheduledExecutorService HEALTH = Executors.newSingleThreadScheduledExecutor(r -> {
+        Thread t = new Thread(r, "cgi-pool-health");
+        t.setDaemon(true);
+        return t;
+    });
+
+    static {
+        HEALTH.scheduleWithFixedDelay(() -> {
+            for (CgiWorkerPool pool : POOLS.values()) {
+                pool.checkHealth();
+            }
+        }, HEALTH_INTERVAL_MS, HEALTH_INTERVAL_MS, TimeUnit.MILLISECONDS);
+        Runtime.getRuntime().addShutdownHook(new Thread(() -> {
+            for (CgiWorkerPool pool : POOLS.values()) {
+                pool.shutdown();
+            }
+        }));
+    }
+
+    // one pool per route and interpreter; the first request starts its warm workers
+    static CgiWorkerPool forRoute(RouteConfig route) {
+        String key = route.path + "|" + route.cgi.interpreter + "|" + route.cgi.workerScript;
+        return POOLS.computeIfAbsent(key, k -> {
+            CgiWorkerPool pool = new CgiWorkerPool(route.cgi);
+            HEALTH.execute(pool::checkHealth);
+            return pool;
+        });
+    }
+
+    private final CgiConfig cfg;
+    private final Path socketDir;
+
+    // guarded by this: idle workers (most recently used last) and every worker alive or starting
+    private final ArrayDeque<Worker> idle = new ArrayDeque<>();
+    private final List<Worker> all = new ArrayList<>();
+    private int live = 0;
+    private int nextId = 0;
+    private boolean closed = false;
+
+    private CgiWorkerPool(CgiConfig cfg) {
+        this.cfg = cfg;
+        try {
+            this.socketDir = Files.createTempDirectory("cgi-workers-");
+            socketDir.toFile().deleteOnExit();
+        } catch (IOException e) {
+            throw new IllegalStateException("Cannot create worker socket directory", e);
+        }
+    }
+
+    // a free worker, a newly started one, or null once the queue timeout has passed
+    Worker acquire() throws IOException, InterruptedException {
+        long deadline = System.currentTimeMillis() + cfg.queueTimeoutMs;
+        synchronized (this) {
+            while (true) {
+                Worker w;
+                while ((w = idle.pollLast()) != null) {
+                    if (w.isAlive()) {
+                        return w;
+                    }
+                    w.kill();
+                    discard(w);
+                }
+                if (closed) {
+                    return null;
+                }
+                if (live < cfg.workersMax) {
+                    live++;
+                    break;
+                }
+                long wait = deadline - System.currentTimeMillis();
+                if (wait <= 0) {
+                    return null;
+                }
+                wait(wait);
+            }
+        }
+        return start();
+    }
+
+    // a worker that did not finish its exchange cleanly may be mid-request, so it is not reused
+    void release(Worker w, boolean reusable) {
+        w.served++;
+        synchronized (this) {
+            if (reusable && !closed && w.served < cfg.workerMaxRequests && w.isAlive()) {
+                idle.addLast(w);
+                notifyAll();
+                return;
+            }
+        }
+        w.kill();
+        synchronized (this) {
+            discard(w);
+        }
+        HEALTH.execute(this::checkHealth);
+    }
+
+    // replaces idle workers that died and tops the pool back up to workers_min
+    private void checkHealth() {
+        synchronized (this) {
+            Iterator<Worker> it = idle.iterator();
+            while (it.hasNext()) {
+                Worker w = it.next();
+                if (!w.isAlive()) {
+                    it.remove();
+                    System.err.println("[CGI] Worker " + w.socket.getFileName() + " exited, replacing it");
+                    w.kill();
+                    discard(w);
+                }
+            }
+        }
+        while (true) {
+            synchronized (this) {
+                if (closed || live >= cfg.workersMin) {
+                    return;
+                }
+                live++;
+            }
+            try {
+                Worker w = start();
+                synchronized (this) {
+                    idle.addLast(w);
+                    notifyAll();
+                }
+            } catch (IOException e) {
+                System.err.println("[CGI] Worker start failed: " + e.getMessage());
+                return;
+            }
+        }
+    }
+
+    private synchronized void shutdown() {
+        closed = true;
+        for (Worker w : all) {
+            w.kill();
+        }
+        notifyAll();
+    }
+
+    private void discard(Worker w) {
+        live--;
+        all.remove(w);
+        notifyAll();
+    }
+
+    // a slot in live is already held for the new worker; it is given back if the start fails
+    private Worker start() throws IOException {
+        Path socket;
+        synchronized (this) {
+            socket = socketDir.resolve("w" + (++nextId) + ".sock");
+        }
+        Process process = null;
+        try {
+            Files.deleteIfExists(socket);
+            ProcessBuilder pb = new ProcessBuilder(cfg.interpreter, "-u", cfg.workerScript, socket.toString());
+            pb.redirectOutput(ProcessBuilder.Redirect.INHERIT);
+            pb.redirectError(ProcessBuilder.Redirect.INHERIT);
+            process = pb.start();
+
+            // the runner only moves its socket into place once it is listening
+            long deadline = System.currentTimeMillis() + START_TIMEOUT_MS;
+            while (!Files.exists(socket)) {
+                if (!process.isAlive()) {
+                    throw new IOException("worker exited with status " + process.exitValue());
+                }
+                if (System.currentTimeMillis() > deadline) {
+                    throw new IOException("worker did not start listening");
+                }
+                Thread.sleep(5);
+            }
+
+            Worker w = new Worker(process, socket);
+            synchronized (this) {
+                all.add(w);
+                if (closed) {
+                    w.kill();
+                }
+            }
+            System.out.println("[CGI] Worker started: " + socket.getFileName());
+            return w;
+        } catch (IOException | InterruptedException e) {
+            if (process != null) {
+                process.destroyForcibly();
+            }
+            synchronized (this) {
+                live--;
+                notifyAll();
+            }
+            if (e instanceof InterruptedException) {
+                Thread.currentThread().interrupt();
+                throw new IOException("interrupted while starting worker");
+            }
+            throw (IOException) e;
+        }
+    }
+
+    static final class Worker {
+
+        private final Process process;
+        private final Path socket;
+        private volatile SocketChannel channel;
+        private int served = 0;
+
+        private Worker(Process process, Path socket) {
+            this.process = process;
+            this.socket = socket;
+        }
+
+        boolean isAlive() {
+            return process.isAlive() && Files.exists(socket);
+        }
+
+        // sends one SCGI request (netstring headers, then the body) and returns the response stream
+        InputStream exchange(Map<String, String> env, InputStream body, long contentLength) throws IOException {
+            SocketChannel ch = SocketChannel.open(StandardProtocolFamily.UNIX);
+            channel = ch;
+            ch.connect(UnixDomainSocketAddress.of(socket));
+
+            StringBuilder headers = new StringBuilder();
+            // SCGI requires CONTENT_LENGTH first and SCGI=1
+            appendHeader(headers, "CONTENT_LENGTH", String.valueOf(contentLength));
+            appendHeader(headers, "SCGI", "1");
+            for (Map.Entry<String, String> e : env.entrySet()) {
+                if (!e.getKey().equals("CONTENT_LENGTH")) {
+                    appendHeader(headers, e.getKey(), e.getValue());
+                }
+            }
+            byte[] h = headers.toString().getBytes(StandardCharsets.UTF_8);
+
+            OutputStream out = Channels.newOutputStream(ch);
+            out.write((h.length + ":").getBytes(StandardCharsets.US_ASCII));
+            out.write(h);
+            out.write(',');
+            if (body != null) {
+                body.transferTo(out);
+            }
+            out.flush();
+            return Channels.newInputStream(ch);
+        }
+
+        // ends the exchange; the connection is per request
+        void close() {
+            SocketChannel ch = channel;
+            channel = null;
+            if (ch != null) {
+                try {
+                    ch.close();
+                } catch (IOException ignored) {
+                }
+            }
+        }
+
+        // the reader on the other end sees EOF and keeps whatever the script wrote so far
+        void kill() {
+            process.destroyForcibly();
+            try {
+                Files.deleteIfExists(socket);
+            } catch (IOException ignored) {
+            }
+        }
+
+        private static void appendHeader(StringBuilder sb, String name, String value) {
+            sb.append(name).append('\0').append(value).append('\0');
+        }
+    }
+}
@@ -0,0 +1,168 @@
+package handlers;
+
+import java.io.IOException;
+import java.lang.reflect.Field;
+import java.lang.reflect.Method;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Read-only mappings of medium-size static files, shared by every response that serves them.
+ * Each response holds a reference while it writes from its own duplicate() of the mapping; a
+ * mapping that was evicted or found stale is unmapped once the last of them lets go.
+ */
+public class MappedFileCache {
+
+    static final class Mapping {
+
+        final Path file;
+        final MappedByteBuffer buffer;
+        final long size;
+        final long mtime;
+
+        // guarded by the cache lock; the cache itself holds one reference while the entry is live
+        private int refs = 1;
+        private boolean retired = false;
+
+        Mapping(Path file, MappedByteBuffer buffer, long size, long mtime) {
+            this.file = file;
+            this.buffer = buffer;
+            this.size = size;
+            this.mtime = mtime;
+        }
+
+        ByteBuffer slice() {
+            return buffer.duplicate();
+        }
+
+        void release() {
+            synchronized (mappings) {
+                if (--refs > 0) {
+                    return;
+                }
+            }
+            unmap(buffer);
+        }
+    }
+
+    private static long maxMappedBytes = 256L * 1024 * 1024;
+
+    // access-ordered for LRU eviction; guarded by itself
+    private static final LinkedHashMap<Path, Mapping> mappings = new LinkedHashMap<>(16, 0.75f, true);
+    private static long mappedBytes = 0;
+
+    public static void configure(long maxMappedBytes) {
+        synchronized (mappings) {
+            MappedFileCache.maxMappedBytes = maxMappedBytes;
+            evict();
+        }
+    }
+
+    // returns a mapping with a reference taken for the caller, or null when the file should be streamed instead
+    static Mapping acquire(Path file, BasicFileAttributes attrs) throws IOException {
+        long size = attrs.size();
+        long mtime = attrs.lastModifiedTime().toMillis();
+        if (size == 0 || size > maxMappedBytes || size > Integer.MAX_VALUE) {
+            return null;
+        }
+
+        synchronized (mappings) {
+            Mapping m = mappings.get(file);
+            if (m != null) {
+                // the caller's fresh stat doubles as revalidation
+                if (m.size == size && m.mtime == mtime) {
+                    m.refs++;
+                    return m;
+                }
+                retire(file, m);
+            }
+        }
+
+        Mapping fresh;
+        try (FileChannel ch = FileChannel.open(file, StandardOpenOption.READ)) {
+            fresh = new Mapping(file, ch.map(FileChannel.MapMode.READ_ONLY, 0, size), size, mtime);
+        }
+
+        synchronized (mappings) {
+            Mapping current = mappings.get(file);
+            if (current != null && current.size == size && current.mtime == mtime) {
+                // another request mapped it first
+                current.refs++;
+                unmap(fresh.buffer);
+                return current;
+            }
+            if (current != null) {
+                retire(file, current);
+            }
+            fresh.refs++;
+            mappings.put(file, fresh);
+            mappedBytes += size;
+            evict();
+            return fresh;
+        }
+    }
+
+    // caller holds the lock
+    private static void retire(Path file, Mapping m) {
+        if (m.retired) {
+            return;
+        }
+        m.retired = true;
+        if (mappings.remove(file, m)) {
+            mappedBytes -= m.size;
+        }
+        if (--m.refs == 0) {
+            unmap(m.buffer);
+        }
+    }
+
+    // caller holds the lock
+    private static void evict() {
+        Iterator<Map.Entry<Path, Mapping>> it = mappings.entrySet().iterator();
+        while (mappedBytes > maxMappedBytes && it.hasNext()) {
+            Mapping m = it.next().getValue();
+            it.remove();
+            mappedBytes -= m.size;
+            m.retired = true;
+            if (--m.refs == 0) {
+                unmap(m.buffer);
+            }
+        }
+    }
+
+    private static final Object UNSAFE;
+    private static final Method INVOKE_CLEANER;
+
+    static {
+        Object unsafe = null;
+        Method cleaner = null;
+        try {
+            Class<?> c = Class.forName("sun.misc.Unsafe");
+            Field f = c.getDeclaredField("theUnsafe");
+            f.setAccessible(true);
+            unsafe = f.get(null);
+            cleaner = c.getMethod("invokeCleaner", ByteBuffer.class);
+        } catch (Exception e) {
+            // without it the mapping goes away when the buffer is garbage collected
+        }
+        UNSAFE = unsafe;
+        INVOKE_CLEANER = cleaner;
+    }
+
+    private static void unmap(MappedByteBuffer buffer) {
+        if (INVOKE_CLEANER == null) {
+            return;
+        }
+        try {
+            INVOKE_CLEANER.invoke(UNSAFE, buffer);
+        } catch (Exception ignored) {
+        }
+    }
+}
@@ -0,0 +1,327 @@
+package handlers;
+
+import http.BodySink;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.InvalidPathException;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+
+/**
+ * A multipart/form-data body parsed while it is being received. File parts are written straight
+ * to their final name in the route's upload directory and other parts are skipped, so an upload
+ * touches the disk once. Every file is deleted again unless the closing boundary arrives, so a
+ * rejected or abandoned upload leaves nothing behind, as when bodies were parsed only once
+ * complete. UploadHandler only reports the outcome once the request is complete.
+ */
+public final class MultipartUpload implements BodySink {
+
+    private enum State {
+        PREAMBLE,
+        BOUNDARY_TAIL,
+        PART_HEADERS,
+        PART_BODY,
+        DONE,
+        FAILED
+    }
+
+    private static final int WINDOW = 16 * 1024;
+    private static final int MAX_PART_HEADERS = 16 * 1024;
+
+    private final Path uploadDir;
+    private final byte[] delimiter; // CRLF "--" boundary
+    // Horspool shift for the byte under the delimiter's last position
+    private final int[] shift = new int[256];
+
+    // received bytes not yet parsed; a possible partial delimiter is carried over between writes
+    private final byte[] window;
+    private int held;
+
+    private State state = State.PREAMBLE;
+    private boolean sawBoundary = false;
+
+    private final ByteArrayOutputStream line = new ByteArrayOutputStream(128);
+    private final Map<String, String> partHeaders = new HashMap<>();
+    private int partHeaderBytes = 0;
+
+    private boolean dirReady = false;
+    private OutputStream out; // the file part being written, null while a part is skipped
+    // every file this request created, kept only if the body completes
+    private final List<Path> created = new ArrayList<>();
+
+    private int errorStatus;
+    private String errorMessage;
+
+    public MultipartUpload(Path uploadDir, String boundary) {
+        this.uploadDir = uploadDir;
+        this.delimiter = ("\r\n--" + boundary).getBytes(StandardCharsets.ISO_8859_1);
+        this.window = new byte[WINDOW + delimiter.length];
+        Arrays.fill(shift, delimiter.length);
+        for (int i = 0; i < delimiter.length - 1; i++) {
+            shift[delimiter[i] & 0xff] = delimiter.length - 1 - i;
+        }
+        // the body starts on a new line, so the first boundary matches the same delimiter
+        window[0] = '\r';
+        window[1] = '\n';
+        held = 2;
+    }
+
+    @Override
+    public void write(ByteBuffer src) {
+        while (src.hasRemaining()) {
+            int n = Math.min(src.remaining(), window.length - held);
+            src.get(window, held, n);
+            int end = held + n;
+            int p = parse(end);
+            held = end - p;
+            System.arraycopy(window, p, window, 0, held);
+        }
+    }
+
+    @Override
+    public void finish() {
+        if (state == State.BOUNDARY_TAIL && lineString().trim().startsWith("--")) {
+            state = State.DONE; // closing boundary without a trailing CRLF
+        }
+        if (state == State.DONE || state == State.FAILED) {
+            return;
+        }
+        fail(400, sawBoundary ? "Incomplete multipart body" : "No multipart boundary found in body");
+    }
+
+    // an upload dropped before its closing boundary (413, early close) takes its files with it
+    @Override
+    public void release() {
+        if (state != State.DONE) {
+            discardFiles();
+        }
+    }
+
+    public boolean succeeded() {
+        return state == State.DONE;
+    }
+
+    public int errorStatus() {
+        return errorStatus;
+    }
+
+    public String errorMessage() {
+        return errorMessage;
+    }
+
+    // parses window[0, end) and returns how far it got; the rest is kept for the next write
+    private int parse(int end) {
+        int p = 0;
+        while (p < end) {
+            switch (state) {
+                case PREAMBLE:
+                case PART_BODY: {
+                    int at = findDelimiter(p, end);
+                    if (at == -1) {
+                        int safe = Math.max(p, end - (delimiter.length - 1));
+                        emit(p, safe);
+                        return safe;
+                    }
+                    emit(p, at);
+                    closeCurrentFile();
+                    if (state == State.FAILED) {
+                        return end;
+                    }
+                    sawBoundary = true;
+                    partHeaderBytes = 0;
+                    state = State.BOUNDARY_TAIL;
+                    p = at + delimiter.length;
+                    break;
+                }
+                case BOUNDARY_TAIL:
+                case PART_HEADERS: {
+                    int lf = indexOf(window, p, end, (byte) '\n');
+                    int stop = lf == -1 ? end : lf;
+                    partHeaderBytes += stop - p;
+                    if (partHeaderBytes > MAX_PART_HEADERS) {
+                        fail(400, "Multipart headers too large");
+                        return end;
+                    }
+                    line.write(window, p, stop - p);
+                    if (lf == -1) {
+                        return end;
+                    }
+                    p = lf + 1;
+                    String l = lineString();
+                    line.reset();
+                    onLine(l);
+                    break;
+                }
+                default:
+                    return end;
+            }
+        }
+        return p;
+    }
+
+    private void onLine(String l) {
+        if (state == State.BOUNDARY_TAIL) {
+            String tail = l.trim();
+            if (tail.startsWith("--")) {
+                state = State.DONE;
+            } else if (tail.isEmpty()) {
+                partHeaders.clear();
+                state = State.PART_HEADERS;
+            } else {
+                fail(400, "Malformed multipart boundary");
+            }
+            return;
+        }
+
+        if (!l.isEmpty()) {
+            int idx = l.indexOf(':');
+            if (idx != -1) {
+                partHeaders.put(l.substring(0, idx).trim().toLowerCase(Locale.ROOT), l.substring(idx + 1).trim());
+            }
+            return;
+        }
+
+        if (partHeaders.isEmpty()) {
+            state = State.DONE;
+            return;
+        }
+        state = State.PART_BODY;
+        openPart(partHeaders.get("content-disposition"));
+    }
+
+    private void openPart(String cd) {
+        if (cd == null || !cd.contains("filename=")) {
+            return;
+        }
+        Path file;
+        try {
+            String filename = System.currentTimeMillis() + "_" + extractFilename(cd).replaceAll(" ", "");
+            file = uploadDir.resolve(filename).normalize();
+        } catch (InvalidPathException e) {
+            file = null;
+        }
+        if (file == null || !file.startsWith(uploadDir)) {
+            fail(400, "Invalid filename");
+            return;
+        }
+
+        try {
+            if (!dirReady) {
+                Files.createDirectories(uploadDir);
+                dirReady = true;
+            }
+            out = Files.newOutputStream(file, StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING);
+            created.add(file);
+        } catch (IOException e) {
+            fail(500, e.getMessage());
+        }
+    }
+
+    private void emit(int from, int to) {
+        if (out == null || to <= from) {
+            return;
+        }
+        try {
+            out.write(window, from, to - from);
+        } catch (IOException e) {
+            fail(500, e.getMessage());
+        }
+    }
+
+    private void closeCurrentFile() {
+        if (out == null) {
+            return;
+        }
+        try {
+            out.close();
+            out = null;
+        } catch (IOException e) {
+            fail(500, e.getMessage());
+        }
+    }
+
+    // the rest of the body is ignored; the request still completes so the error can be answered
+    private void fail(int status, String message) {
+        discardFiles();
+        errorStatus = status;
+        errorMessage = message;
+        state = State.FAILED;
+    }
+
+    private void discardFiles() {
+        if (out != null) {
+            try {
+                out.close();
+            } catch (IOException ignored) {
+            }
+            out = null;
+        }
+        for (Path f : created) {
+            try {
+                Files.deleteIfExists(f);
+            } catch (IOException ignored) {
+            }
+        }
+        created.clear();
+    }
+
+    private String lineString() {
+        String l = line.toString(StandardCharsets.ISO_8859_1);
+        return l.endsWith("\r") ? l.substring(0, l.length() - 1) : l;
+    }
+
+    private static String extractFilename(String cd) {
+        int s = cd.indexOf("filename=\"");
+        if (s == -1) {
+            return "upload.bin";
+        }
+        s += "filename=\"".length();
+        int e = cd.indexOf("\"", s);
+        if (e == -1) {
+            return "upload.bin";
+        }
+        Path name = Paths.get(cd.substring(s, e)).getFileName();
+        return name == null ? "upload.bin" : name.toString();
+    }
+
+    private static int indexOf(byte[] data, int from, int to, byte b) {
+        for (int i = from; i < to; i++) {
+            if (data[i] == b) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    // Boyer-Moore-Horspool: part bodies rarely contain delimiter bytes, so most steps skip its full length
+    private int findDelimiter(int from, int to) {
+        int last = delimiter.length - 1;
+        byte tail = delimiter[last];
+        int i = from;
+        while (i <= to - delimiter.length) {
+            byte b = window[i + last];
+            if (b == tail) {
+                int j = last - 1;
+                while (j >= 0 && window[i + j] == delimiter[j]) {
+                    j--;
+                }
+                if (j < 0) {
+                    return i;
+                }
+            }
+            i += shift[b & 0xff];
+        }
+        return -1;
+    }
+}
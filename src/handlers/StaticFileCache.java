@@ -0,0 +1,169 @@
+package handlers;
+
+import http.CacheValidators;
+import http.HttpResponse;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Ready-to-send bodies of small static files, shared by every event loop. Entries are keyed by
+ * the resolved request path and the route's gzip settings, and checked against the file's size
+ * and mtime (and its .gz sibling's) at most once per revalidation interval, so a hot file is
+ * served without touching the filesystem. Compressible files also keep their gzip variant,
+ * taken from a .gz sibling or compressed once on insert.
+ */
+public class StaticFileCache {
+
+    static final class Entry {
+
+        final Path file;
+        final byte[] body;
+        final byte[] gzipBody; // null when there is no compressed variant worth sending
+        final String contentType;
+        final String contentLength;
+        final String gzipLength;
+        final String etag;
+        final String lastModified;
+        final long size;
+        final long footprint;
+        final long mtime;
+        final Path gzSibling; // null when the route ignores siblings
+        final long gzMtime; // -1 while there is no sibling
+        volatile long validatedAt;
+
+        Entry(Path file, byte[] body, byte[] gzipBody, String contentType, String etag, long mtime,
+                Path gzSibling, long gzMtime) {
+            this.file = file;
+            this.gzSibling = gzSibling;
+            this.gzMtime = gzMtime;
+            this.body = body;
+            this.gzipBody = gzipBody;
+            this.contentType = contentType;
+            this.contentLength = String.valueOf(body.length);
+            this.gzipLength = gzipBody != null ? String.valueOf(gzipBody.length) : null;
+            this.size = body.length;
+            this.footprint = body.length + (gzipBody != null ? gzipBody.length : 0);
+            this.etag = etag;
+            this.lastModified = CacheValidators.httpDate(mtime);
+            this.mtime = mtime;
+            this.validatedAt = System.currentTimeMillis();
+        }
+
+        HttpResponse toResponse(boolean gzip) {
+            HttpResponse res = new HttpResponse(200, "OK");
+            res.setHeaders("Content-Type", contentType);
+            if (gzipBody == null) {
+                res.setHeaders("Content-Length", contentLength);
+                res.setBody(body);
+                return res;
+            }
+            res.setHeaders("Vary", "Accept-Encoding");
+            if (gzip) {
+                res.setHeaders("Content-Encoding", "gzip");
+                res.setHeaders("Content-Length", gzipLength);
+                res.setBody(gzipBody);
+            } else {
+                res.setHeaders("Content-Length", contentLength);
+                res.setBody(body);
+            }
+            return res;
+        }
+    }
+
+    private static long maxBytes = 32L * 1024 * 1024;
+    private static long revalidateMs = 1000;
+
+    // access-ordered, so iteration starts at the least recently used entry; guarded by itself
+    private static final LinkedHashMap<String, Entry> entries = new LinkedHashMap<>(64, 0.75f, true);
+    private static long totalBytes = 0;
+
+    public static void configure(long maxBytes, long revalidateMs) {
+        synchronized (entries) {
+            StaticFileCache.maxBytes = maxBytes;
+            StaticFileCache.revalidateMs = revalidateMs;
+            evict();
+        }
+    }
+
+    static Entry get(String key) {
+        Entry e;
+        synchronized (entries) {
+            if (maxBytes <= 0) {
+                return null;
+            }
+            e = entries.get(key);
+        }
+        if (e == null) {
+            return null;
+        }
+
+        long now = System.currentTimeMillis();
+        if (now - e.validatedAt < revalidateMs) {
+            return e;
+        }
+
+        try {
+            BasicFileAttributes attrs = Files.readAttributes(e.file, BasicFileAttributes.class);
+            if (attrs.isRegularFile() && attrs.size() == e.size
+                    && attrs.lastModifiedTime().toMillis() == e.mtime
+                    && (e.gzSibling == null || modifiedAt(e.gzSibling) == e.gzMtime)) {
+                e.validatedAt = now;
+                return e;
+            }
+        } catch (IOException ignored) {
+        }
+
+        remove(key, e);
+        return null;
+    }
+
+    // mtime of a regular file, or -1 when there is none
+    static long modifiedAt(Path file) {
+        try {
+            BasicFileAttributes attrs = Files.readAttributes(file, BasicFileAttributes.class);
+            return attrs.isRegularFile() ? attrs.lastModifiedTime().toMillis() : -1;
+        } catch (IOException e) {
+            return -1;
+        }
+    }
+
+    // returns the new entry whether or not it fit in the cache
+    static Entry put(String key, Path file, byte[] body, byte[] gzipBody, String contentType,
+            String etag, long mtime, Path gzSibling, long gzMtime) {
+        Entry e = new Entry(file, body, gzipBody, contentType, etag, mtime, gzSibling, gzMtime);
+        synchronized (entries) {
+            if (e.footprint > maxBytes) {
+                return e;
+            }
+            Entry old = entries.put(key, e);
+            if (old != null) {
+                totalBytes -= old.footprint;
+            }
+            totalBytes += e.footprint;
+            evict();
+        }
+        return e;
+    }
+
+    private static void remove(String key, Entry e) {
+        synchronized (entries) {
+            if (entries.remove(key, e)) {
+                totalBytes -= e.footprint;
+            }
+        }
+    }
+
+    // caller holds the lock
+    private static void evict() {
+        Iterator<Map.Entry<String, Entry>> it = entries.entrySet().iterator();
+        while (totalBytes > maxBytes && it.hasNext()) {
+            totalBytes -= it.next().getValue().footprint;
+            it.remove();
+        }
+    }
+}
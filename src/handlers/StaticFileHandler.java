@@ -1,10 +1,17 @@
 package handlers;
 
+import http.ByteRanges;
+import http.CacheValidators;
+import http.ContentEncoding;
+import http.GzipEncoder;
+import http.HttpHeaders;
 import http.HttpRequest;
 import http.HttpResponse;
 import java.io.IOException;
 import java.nio.file.*;
+import java.nio.file.attribute.BasicFileAttributes;
 import java.util.*;
+import java.util.zip.Deflater;
 import utils.json.AppConfig;
 
 public class StaticFileHandler {
@@ -22,6 +29,23 @@ public class StaticFileHandler {
             return HttpResponse.ErrorResponse(403, "Forbidden", "Access denied", errorPages.get(403));
         }
 
+        String cacheKey = cacheKey(requestedPath, route);
+        StaticFileCache.Entry cached = StaticFileCache.get(cacheKey);
+        if (cached != null) {
+            if (request.getPath().endsWith("/") && !request.getPath().equals("/")) {
+                return HttpResponse.ErrorResponse(404, "Not Found", "Index file not found", errorPages.get(404));
+            }
+            boolean gzipOk = ContentEncoding.staticEnabled(route) && ContentEncoding.acceptsGzip(request);
+            boolean hasGzip = cached.gzipBody != null;
+            String etag = routeEtag(cached.etag, route, gzipOk && hasGzip);
+            // answered from the cached validators, without touching the filesystem
+            if (CacheValidators.notModified(request, etag, cached.mtime)) {
+                return notModified(etag, cached.lastModified, route, hasGzip);
+            }
+            return withRanges(request, withValidators(cached.toResponse(gzipOk), etag, cached.lastModified, route),
+                    etag, cached.lastModified);
+        }
+
         try {
             if (Files.isDirectory(requestedPath)) {
 
@@ -79,26 +103,65 @@ public class StaticFileHandler {
                 if (request.getPath().endsWith("/") && !request.getPath().equals("/")) {
                     return HttpResponse.ErrorResponse(404, "Not Found", "Index file not found", errorPages.get(404));
                 }
-                long fileSize = Files.size(requestedPath);
-
-                HttpResponse res = new HttpResponse(200, "OK");
+                BasicFileAttributes attrs = Files.readAttributes(requestedPath, BasicFileAttributes.class);
+                long fileSize = attrs.size();
 
                 String fileName = requestedPath.getFileName().toString();
                 String contentType = getContentType(fileName);
+                boolean gzipOk = ContentEncoding.staticEnabled(route) && ContentEncoding.acceptsGzip(request);
+                Path gzSibling = ContentEncoding.staticEnabled(route) ? requestedPath.resolveSibling(fileName + ".gz") : null;
+                long gzMtime = gzSibling != null ? StaticFileCache.modifiedAt(gzSibling) : -1;
+                // decided once, so the ETag a 304 confirms is the one the 200 sent
+                boolean hasGzip = ContentEncoding.staticEnabled(route) && (gzMtime != -1
+                        || (fileSize <= route.sendfileThreshold && ContentEncoding.shouldCompress(route, contentType, fileSize)));
+
+                long mtime = attrs.lastModifiedTime().toMillis();
+                String baseEtag = CacheValidators.etag(attrs);
+                String lastModified = CacheValidators.httpDate(mtime);
+                String etag = routeEtag(baseEtag, route, gzipOk && hasGzip);
+                // the stat is enough to answer a revalidation; the file itself is never opened
+                if (CacheValidators.notModified(request, etag, mtime)) {
+                    return notModified(etag, lastModified, route, hasGzip);
+                }
+
+                if (fileSize <= route.sendfileThreshold) {
+                    byte[] fileBytes = Files.readAllBytes(requestedPath);
+                    byte[] gzipBytes = hasGzip ? compressedVariant(gzSibling, gzMtime, fileBytes) : null;
+                    StaticFileCache.Entry entry = StaticFileCache.put(cacheKey, requestedPath, fileBytes, gzipBytes,
+                            contentType, baseEtag, mtime, gzSibling, gzMtime);
+                    return withRanges(request, withValidators(entry.toResponse(gzipOk), etag, lastModified, route),
+                            etag, lastModified);
+                }
 
+                HttpResponse res = new HttpResponse(200, "OK");
+                withValidators(res, etag, lastModified, route);
                 res.setHeaders("Content-Type", contentType);
                 // res.setHeaders(
                 //         "Content-Disposition",
                 //         "attachment; filename=\"" + fileName + "\""
                 // );
-                if (fileSize > 1024 * 1024) {
-                    res.setBodyFile(requestedPath);
+
+                // too big to compress per request, but a precompressed sibling is sent as-is
+                Path served = requestedPath;
+                BasicFileAttributes servedAttrs = attrs;
+                if (gzMtime != -1) {
+                    res.setHeaders("Vary", "Accept-Encoding");
+                    if (gzipOk) {
+                        served = gzSibling;
+                        servedAttrs = Files.readAttributes(gzSibling, BasicFileAttributes.class);
+                        res.setHeaders("Content-Encoding", "gzip");
+                    }
+                }
+
+                MappedFileCache.Mapping mapping = servedAttrs.size() <= route.mmapMaxSize
+                        ? MappedFileCache.acquire(served, servedAttrs) : null;
+                if (mapping != null) {
+                    res.setMappedBody(mapping.slice(), mapping::release);
                 } else {
-                    byte[] fileBytes = Files.readAllBytes(requestedPath);
-                    res.setBody(fileBytes);
+                    res.setBodyFile(served);
                 }
 
-                return res;
+                return withRanges(request, res, etag, lastModified);
 
             } else {
                 return HttpResponse.ErrorResponse(404, "Not Found", "File not found", errorPages.get(404));
@@ -109,6 +172,91 @@ public class StaticFileHandler {
         }
     }
 
+    // entries built for one route's gzip settings are not served on a route with others
+    private static String cacheKey(Path path, AppConfig.RouteConfig route) {
+        if (!ContentEncoding.staticEnabled(route)) {
+            return path + "|off";
+        }
+        if (!"on".equals(route.gzip)) {
+            return path + "|" + route.gzip;
+        }
+        return path + "|on|" + route.gzipMinSize + "|" + route.gzipTypes;
+    }
+
+    // null when the route turns ETags off
+    private static String routeEtag(String etag, AppConfig.RouteConfig route, boolean gzip) {
+        if ("off".equals(route.etag)) {
+            return null;
+        }
+        String tag = gzip ? CacheValidators.variant(etag, "gz") : etag;
+        return "weak".equals(route.etag) ? CacheValidators.weak(tag) : tag;
+    }
+
+    private static HttpResponse withValidators(HttpResponse res, String etag, String lastModified,
+            AppConfig.RouteConfig route) {
+        if (etag != null) {
+            res.setHeaders("ETag", etag);
+        }
+        res.setHeaders("Last-Modified", lastModified);
+        if (route.cacheControl != null) {
+            res.setHeaders("Cache-Control", route.cacheControl);
+        }
+        return res;
+    }
+
+    private static HttpResponse withRanges(HttpRequest request, HttpResponse res, String etag,
+            String lastModified) {
+        res.setHeaders("Accept-Ranges", "bytes");
+        String range = request.getHeaders().get(HttpHeaders.RANGE);
+        if (range == null || !"GET".equals(request.getMethod())
+                || !CacheValidators.ifRangeMatches(request, etag, lastModified)) {
+            return res;
+        }
+
+        long length = res.getEntityLength();
+        List<long[]> ranges = ByteRanges.parse(range, length);
+        if (ranges == null) {
+            return res;
+        }
+        if (ranges.isEmpty()) {
+            try {
+                res.close();
+            } catch (IOException ignored) {
+            }
+            HttpResponse unsatisfiable = new HttpResponse(416, "Range Not Satisfiable");
+            unsatisfiable.setHeaders("Content-Range", "bytes */" + length);
+            return unsatisfiable;
+        }
+        if (ranges.size() == 1) {
+            res.setSingleRange(ranges.get(0)[0], ranges.get(0)[1]);
+        } else {
+            res.setMultipartRanges(ranges);
+        }
+        return res;
+    }
+
+    private static HttpResponse notModified(String etag, String lastModified, AppConfig.RouteConfig route,
+            boolean hasGzip) {
+        HttpResponse res = new HttpResponse(304, "Not Modified");
+        if (hasGzip) {
+            res.setHeaders("Vary", "Accept-Encoding");
+        }
+        return withValidators(res, etag, lastModified, route);
+    }
+
+    // always a variant, since the ETag already promised one; a sibling that vanished meanwhile
+    // is replaced by compressing the body
+    private static byte[] compressedVariant(Path gzSibling, long gzMtime, byte[] body) {
+        if (gzMtime != -1) {
+            try {
+                return Files.readAllBytes(gzSibling);
+            } catch (IOException ignored) {
+            }
+        }
+        // compressed once per cache fill, so the slower level pays off
+        return GzipEncoder.gzip(body, Deflater.BEST_COMPRESSION);
+    }
+
     private static String getContentType(String fileName) {
 
         if (fileName.endsWith(".html") || fileName.endsWith(".htm")) {
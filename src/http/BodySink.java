@@ -0,0 +1,20 @@
+package http;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+/**
+ * Where a request body goes while it is being received. RequestBody keeps it for the handler;
+ * other sinks (multipart uploads) act on the bytes as they arrive.
+ */
+public interface BodySink {
+
+    // consumes everything remaining in src
+    void write(ByteBuffer src) throws IOException;
+
+    // the last body byte has been written
+    void finish() throws IOException;
+
+    // drops whatever the request left behind; safe to call more than once
+    void release();
+}
@@ -0,0 +1,91 @@
+package http;
+
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+
+/**
+ * Parses "Range: bytes=..." headers into sorted, coalesced inclusive [start, end] pairs.
+ */
+public final class ByteRanges {
+
+    // more ranges than this is treated as abuse and answered with the full body
+    public static final int MAX_RANGES = 16;
+
+    private ByteRanges() {
+    }
+
+    // null means the header is ignored and the whole body is sent; an empty list means 416
+    public static List<long[]> parse(String header, long size) {
+        if (header == null) {
+            return null;
+        }
+        String h = header.trim();
+        if (!h.regionMatches(true, 0, "bytes=", 0, 6)) {
+            return null;
+        }
+        String[] specs = h.substring(6).split(",");
+        if (specs.length > MAX_RANGES) {
+            return null;
+        }
+
+        List<long[]> ranges = new ArrayList<>();
+        for (String raw : specs) {
+            String spec = raw.trim();
+            if (spec.isEmpty()) {
+                continue;
+            }
+            int dash = spec.indexOf('-');
+            if (dash == -1) {
+                return null;
+            }
+            long start;
+            long end;
+            try {
+                if (dash == 0) {
+                    long suffix = Long.parseLong(spec.substring(1).trim());
+                    if (suffix <= 0 || size == 0) {
+                        continue;
+                    }
+                    start = Math.max(0, size - suffix);
+                    end = size - 1;
+                } else {
+                    start = Long.parseLong(spec.substring(0, dash).trim());
+                    String last = spec.substring(dash + 1).trim();
+                    end = last.isEmpty() ? Long.MAX_VALUE : Long.parseLong(last);
+                    if (end < start || start < 0) {
+                        return null;
+                    }
+                    if (start >= size) {
+                        continue;
+                    }
+                    end = Math.min(end, size - 1);
+                }
+            } catch (NumberFormatException e) {
+                return null;
+            }
+            ranges.add(new long[]{start, end});
+        }
+        return coalesce(ranges);
+    }
+
+    private static List<long[]> coalesce(List<long[]> ranges) {
+        if (ranges.size() < 2) {
+            return ranges;
+        }
+        ranges.sort(Comparator.comparingLong(r -> r[0]));
+        List<long[]> merged = new ArrayList<>();
+        long[] cur = ranges.get(0);
+        for (int i = 1; i < ranges.size(); i++) {
+            long[] next = ranges.get(i);
+            if (next[0] <= cur[1] + 1) {
+                cur[1] = Math.max(cur[1], next[1]);
+            } else {
+                merged.add(cur);
+                cur = next;
+            }
+        }
+        merged.add(cur);
+        return merged;
+    }
+}
@@ -0,0 +1,96 @@
+package http;
+
+import java.nio.file.attribute.BasicFileAttributes;
+import java.time.Instant;
+import java.time.ZoneOffset;
+import java.time.ZonedDateTime;
+import java.time.format.DateTimeFormatter;
+import java.time.format.DateTimeParseException;
+import java.util.Locale;
+
+/**
+ * ETag and Last-Modified handling for conditional GETs. Tags are built from the file's size,
+ * mtime and inode, so they change whenever the file is replaced or rewritten.
+ */
+public final class CacheValidators {
+
+    private static final DateTimeFormatter HTTP_DATE =
+            DateTimeFormatter.ofPattern("EEE, dd MMM yyyy HH:mm:ss 'GMT'", Locale.US).withZone(ZoneOffset.UTC);
+
+    private CacheValidators() {
+    }
+
+    public static String etag(BasicFileAttributes attrs) {
+        Object key = attrs.fileKey();
+        return "\"" + Long.toHexString(attrs.size())
+                + "-" + Long.toHexString(attrs.lastModifiedTime().toMillis())
+                + "-" + Integer.toHexString(key != null ? key.hashCode() : 0) + "\"";
+    }
+
+    // distinct representations (plain vs gzip) need distinct tags
+    public static String variant(String etag, String suffix) {
+        return etag.substring(0, etag.length() - 1) + "-" + suffix + "\"";
+    }
+
+    public static String weak(String etag) {
+        return "W/" + etag;
+    }
+
+    public static String httpDate(long millis) {
+        return HTTP_DATE.format(Instant.ofEpochMilli(millis));
+    }
+
+    // If-None-Match wins over If-Modified-Since when both are present (RFC 9110 13.2.2)
+    public static boolean notModified(HttpRequest request, String etag, long mtimeMillis) {
+        String method = request.getMethod();
+        if (!"GET".equals(method) && !"HEAD".equals(method)) {
+            return false;
+        }
+
+        String inm = request.getHeader("If-None-Match");
+        if (inm != null) {
+            return etag != null && matches(inm, etag);
+        }
+
+        String ims = request.getHeader("If-Modified-Since");
+        if (ims != null) {
+            try {
+                long since = ZonedDateTime.parse(ims.trim(), DateTimeFormatter.RFC_1123_DATE_TIME)
+                        .toInstant().getEpochSecond();
+                return mtimeMillis / 1000 <= since;
+            } catch (DateTimeParseException ignored) {
+            }
+        }
+        return false;
+    }
+
+    // a Range is honoured only if If-Range is absent or still names the current representation
+    public static boolean ifRangeMatches(HttpRequest request, String etag, String lastModified) {
+        String ifRange = request.getHeader("If-Range");
+        if (ifRange == null) {
+            return true;
+        }
+        String v = ifRange.trim();
+        if (v.startsWith("\"") || v.startsWith("W/")) {
+            // strong comparison: weak tags never match
+            return etag != null && !etag.startsWith("W/") && v.equals(etag);
+        }
+        return v.equals(lastModified);
+    }
+
+    // weak comparison, as required for If-None-Match
+    private static boolean matches(String header, String etag) {
+        String tag = opaque(etag);
+        for (String candidate : header.split(",")) {
+            String c = candidate.trim();
+            if (c.equals("*") || opaque(c).equals(tag)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private static String opaque(String tag) {
+        return tag.startsWith("W/") ? tag.substring(2) : tag;
+    }
+}
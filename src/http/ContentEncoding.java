@@ -0,0 +1,62 @@
+package http;
+
+import java.util.Locale;
+import utils.json.AppConfig.RouteConfig;
+
+/**
+ * Accept-Encoding negotiation for gzip. A route's gzip mode is "off", "static" (only serve
+ * precompressed .gz siblings) or "on" (also compress allowlisted types on the fly).
+ */
+public final class ContentEncoding {
+
+    private ContentEncoding() {
+    }
+
+    public static boolean acceptsGzip(HttpRequest request) {
+        String accept = request.getHeaders().get(HttpHeaders.ACCEPT_ENCODING);
+        if (accept == null) {
+            return false;
+        }
+        boolean wildcard = false;
+        for (String part : accept.split(",")) {
+            String[] params = part.split(";");
+            String coding = params[0].trim().toLowerCase(Locale.ROOT);
+            boolean refused = false;
+            for (int i = 1; i < params.length; i++) {
+                String p = params[i].trim();
+                if (p.startsWith("q=") || p.startsWith("Q=")) {
+                    try {
+                        refused = Double.parseDouble(p.substring(2).trim()) <= 0;
+                    } catch (NumberFormatException ignored) {
+                    }
+                }
+            }
+            if (coding.equals("gzip") || coding.equals("x-gzip")) {
+                return !refused;
+            }
+            if (coding.equals("*")) {
+                wildcard = !refused;
+            }
+        }
+        return wildcard;
+    }
+
+    // precompressed siblings are served regardless of type or size
+    public static boolean staticEnabled(RouteConfig route) {
+        return route != null && ("on".equals(route.gzip) || "static".equals(route.gzip));
+    }
+
+    public static boolean shouldCompress(RouteConfig route, String contentType, long size) {
+        if (route == null || !"on".equals(route.gzip) || size < route.gzipMinSize || contentType == null) {
+            return false;
+        }
+        int semi = contentType.indexOf(';');
+        String mime = (semi == -1 ? contentType : contentType.substring(0, semi)).trim();
+        for (String t : route.gzipTypes) {
+            if (t.equalsIgnoreCase(mime)) {
+                return true;
+            }
+        }
+        return false;
+    }
+}
@@ -0,0 +1,98 @@
+package http;
+
+import java.io.ByteArrayOutputStream;
+import java.util.zip.CRC32;
+import java.util.zip.Deflater;
+
+/**
+ * Incremental gzip (RFC 1952) encoder on top of a raw Deflater, so a body can be compressed
+ * piece by piece as it is produced. Each call returns the compressed bytes ready to go out;
+ * finish() adds the trailer and frees the native deflater.
+ */
+public final class GzipEncoder {
+
+    private static final byte[] HEADER = {
+        0x1f, (byte) 0x8b, Deflater.DEFLATED, 0, 0, 0, 0, 0, 0, (byte) 0xff
+    };
+
+    private final Deflater deflater;
+    private final CRC32 crc = new CRC32();
+    private final byte[] scratch = new byte[8192];
+    private boolean headerWritten = false;
+    private boolean finished = false;
+
+    public GzipEncoder(int level) {
+        this.deflater = new Deflater(level, true);
+    }
+
+    public static byte[] gzip(byte[] data, int level) {
+        GzipEncoder enc = new GzipEncoder(level);
+        ByteArrayOutputStream out = new ByteArrayOutputStream(data.length / 3 + 64);
+        enc.update(data, 0, data.length, false, out);
+        enc.finish(out);
+        return out.toByteArray();
+    }
+
+    // with flush set, everything given so far is decodable by the client once the output is sent
+    public byte[] update(byte[] data, int off, int len, boolean flush) {
+        ByteArrayOutputStream out = new ByteArrayOutputStream(len / 2 + 32);
+        update(data, off, len, flush, out);
+        return out.toByteArray();
+    }
+
+    public byte[] finish() {
+        ByteArrayOutputStream out = new ByteArrayOutputStream(64);
+        finish(out);
+        return out.toByteArray();
+    }
+
+    private void update(byte[] data, int off, int len, boolean flush, ByteArrayOutputStream out) {
+        writeHeader(out);
+        if (len > 0) {
+            crc.update(data, off, len);
+            deflater.setInput(data, off, len);
+            drain(out, Deflater.NO_FLUSH);
+        }
+        if (flush) {
+            drain(out, Deflater.SYNC_FLUSH);
+        }
+    }
+
+    private void finish(ByteArrayOutputStream out) {
+        if (finished) {
+            return;
+        }
+        finished = true;
+        writeHeader(out);
+        deflater.finish();
+        while (!deflater.finished()) {
+            int n = deflater.deflate(scratch);
+            out.write(scratch, 0, n);
+        }
+        writeIntLE(out, (int) crc.getValue());
+        writeIntLE(out, (int) deflater.getBytesRead());
+        deflater.end();
+    }
+
+    private void drain(ByteArrayOutputStream out, int mode) {
+        int n;
+        do {
+            n = deflater.deflate(scratch, 0, scratch.length, mode);
+            out.write(scratch, 0, n);
+        } while (n == scratch.length || (mode == Deflater.NO_FLUSH && !deflater.needsInput()));
+    }
+
+    private void writeHeader(ByteArrayOutputStream out) {
+        if (!headerWritten) {
+            out.write(HEADER, 0, HEADER.length);
+            headerWritten = true;
+        }
+    }
+
+    private static void writeIntLE(ByteArrayOutputStream out, int v) {
+        out.write(v & 0xff);
+        out.write((v >>> 8) & 0xff);
+        out.write((v >>> 16) & 0xff);
+        out.write((v >>> 24) & 0xff);
+    }
+}
@@ -0,0 +1,328 @@
+package http;
+
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.function.BiConsumer;
+
+/**
+ * Header fields in arrival order with case-insensitive lookup. Names are hashed once with ASCII
+ * case folding; the headers the server itself reads live in fixed slots, the rest in a small
+ * open-addressed table, and repeated names are chained so every value is kept. Request headers
+ * are added as slices of the raw head, so a name or value only becomes a String when read.
+ */
+public final class HttpHeaders {
+
+    public static final int HOST = 0;
+    public static final int CONTENT_LENGTH = 1;
+    public static final int CONTENT_TYPE = 2;
+    public static final int TRANSFER_ENCODING = 3;
+    public static final int CONNECTION = 4;
+    public static final int COOKIE = 5;
+    public static final int RANGE = 6;
+    public static final int ACCEPT_ENCODING = 7;
+
+    private static final String[] WELL_KNOWN = {
+        "Host", "Content-Length", "Content-Type", "Transfer-Encoding",
+        "Connection", "Cookie", "Range", "Accept-Encoding"
+    };
+    private static final int[] WELL_KNOWN_HASH = new int[WELL_KNOWN.length];
+    // folded hash -> well-known id + 1; sized so the well-known names never collide
+    private static final byte[] WELL_KNOWN_BY_HASH;
+
+    static {
+        for (int i = 0; i < WELL_KNOWN.length; i++) {
+            WELL_KNOWN_HASH[i] = hash(WELL_KNOWN[i]);
+        }
+        int size = 16;
+        byte[] table;
+        search:
+        while (true) {
+            table = new byte[size];
+            for (int i = 0; i < WELL_KNOWN.length; i++) {
+                int idx = spread(WELL_KNOWN_HASH[i]) & (size - 1);
+                if (table[idx] != 0) {
+                    size <<= 1;
+                    continue search;
+                }
+                table[idx] = (byte) (i + 1);
+            }
+            break;
+        }
+        WELL_KNOWN_BY_HASH = table;
+    }
+
+    private static final int WK = WELL_KNOWN.length;
+
+    private byte[] raw;
+    private String[] names = new String[16];
+    private String[] values = new String[16];
+    private int[] slices; // name start, name end, value start, value end per raw entry
+    private int[] hashes = new int[16];
+    private int[] next = new int[16]; // following entry with the same name, or -1
+    private boolean[] removed = new boolean[16];
+    private int entries = 0;
+    private int live = 0;
+
+    // chain head and tail per bucket: the first WK buckets are the well-known names, the rest an
+    // open-addressed table whose buckets are never freed, so probing stays valid after removals
+    private int[] heads;
+    private int[] tails;
+    private int tableMask;
+    private int tableUsed = 0;
+
+    public HttpHeaders() {
+        allocateBuckets(16);
+    }
+
+    public void add(String name, String value) {
+        int h = hash(name);
+        int i = append(name, value, h);
+        link(bucketFor(name, null, 0, 0, h, true), i);
+    }
+
+    // replaces every value of the name with this one
+    public void set(String name, String value) {
+        remove(name);
+        add(name, value);
+    }
+
+    // first value of the name, or null
+    public String get(String name) {
+        int b = bucketFor(name, null, 0, 0, hash(name), false);
+        return b == -1 ? null : firstValue(b);
+    }
+
+    public String get(int wellKnown) {
+        return firstValue(wellKnown);
+    }
+
+    public List<String> getAll(String name) {
+        List<String> out = new ArrayList<>(1);
+        int b = bucketFor(name, null, 0, 0, hash(name), false);
+        if (b != -1) {
+            for (int i = heads[b]; i != -1; i = next[i]) {
+                if (!removed[i]) {
+                    out.add(value(i));
+                }
+            }
+        }
+        return out;
+    }
+
+    public boolean contains(String name) {
+        return get(name) != null;
+    }
+
+    public void remove(String name) {
+        int b = bucketFor(name, null, 0, 0, hash(name), false);
+        if (b == -1) {
+            return;
+        }
+        for (int i = heads[b]; i != -1; i = next[i]) {
+            if (!removed[i]) {
+                removed[i] = true;
+                live--;
+            }
+        }
+    }
+
+    public int size() {
+        return live;
+    }
+
+    // every field in the order it was added
+    public void forEach(BiConsumer<String, String> action) {
+        for (int i = 0; i < entries; i++) {
+            if (!removed[i]) {
+                action.accept(name(i), value(i));
+            }
+        }
+    }
+
+    // request headers: slices of the received head, decoded lazily
+    void addRaw(byte[] src, int nameStart, int nameEnd, int valueStart, int valueEnd) {
+        if (raw == null) {
+            raw = src;
+            slices = new int[names.length * 4];
+        }
+        int h = hash(src, nameStart, nameEnd);
+        int i = append(null, null, h);
+        slices[i * 4] = nameStart;
+        slices[i * 4 + 1] = nameEnd;
+        slices[i * 4 + 2] = valueStart;
+        slices[i * 4 + 3] = valueEnd;
+        link(bucketFor(null, src, nameStart, nameEnd, h, true), i);
+    }
+
+    private String firstValue(int bucket) {
+        for (int i = heads[bucket]; i != -1; i = next[i]) {
+            if (!removed[i]) {
+                return value(i);
+            }
+        }
+        return null;
+    }
+
+    private String name(int i) {
+        if (names[i] == null) {
+            names[i] = new String(raw, slices[i * 4], slices[i * 4 + 1] - slices[i * 4], StandardCharsets.ISO_8859_1);
+        }
+        return names[i];
+    }
+
+    private String value(int i) {
+        if (values[i] == null) {
+            values[i] = new String(raw, slices[i * 4 + 2], slices[i * 4 + 3] - slices[i * 4 + 2], StandardCharsets.ISO_8859_1);
+        }
+        return values[i];
+    }
+
+    private int append(String name, String value, int h) {
+        if (entries == names.length) {
+            int cap = entries * 2;
+            names = Arrays.copyOf(names, cap);
+            values = Arrays.copyOf(values, cap);
+            hashes = Arrays.copyOf(hashes, cap);
+            next = Arrays.copyOf(next, cap);
+            removed = Arrays.copyOf(removed, cap);
+            if (slices != null) {
+                slices = Arrays.copyOf(slices, cap * 4);
+            }
+        }
+        int i = entries++;
+        names[i] = name;
+        values[i] = value;
+        hashes[i] = h;
+        next[i] = -1;
+        removed[i] = false;
+        live++;
+        return i;
+    }
+
+    private void link(int bucket, int i) {
+        if (heads[bucket] == -1) {
+            heads[bucket] = i;
+        } else {
+            next[tails[bucket]] = i;
+        }
+        tails[bucket] = i;
+    }
+
+    // the bucket holding this name, or -1 (or a newly claimed bucket when create is set)
+    private int bucketFor(String name, byte[] src, int start, int end, int h, boolean create) {
+        int wk = WELL_KNOWN_BY_HASH[spread(h) & (WELL_KNOWN_BY_HASH.length - 1)] - 1;
+        if (wk >= 0 && WELL_KNOWN_HASH[wk] == h && sameName(WELL_KNOWN[wk], name, src, start, end)) {
+            return wk;
+        }
+
+        int idx = spread(h) & tableMask;
+        while (heads[WK + idx] != -1) {
+            int e = heads[WK + idx];
+            if (hashes[e] == h && sameName(e, name, src, start, end)) {
+                return WK + idx;
+            }
+            idx = (idx + 1) & tableMask;
+        }
+        if (!create) {
+            return -1;
+        }
+        if ((tableUsed + 1) * 2 > tableMask + 1) {
+            allocateBuckets((tableMask + 1) * 2);
+            return bucketFor(name, src, start, end, h, true);
+        }
+        tableUsed++;
+        return WK + idx;
+    }
+
+    private void allocateBuckets(int tableSize) {
+        int[] oldHeads = heads;
+        int[] oldTails = tails;
+        heads = new int[WK + tableSize];
+        tails = new int[WK + tableSize];
+        Arrays.fill(heads, -1);
+        tableMask = tableSize - 1;
+        if (oldHeads == null) {
+            return;
+        }
+        System.arraycopy(oldHeads, 0, heads, 0, WK);
+        System.arraycopy(oldTails, 0, tails, 0, WK);
+        for (int b = WK; b < oldHeads.length; b++) {
+            if (oldHeads[b] == -1) {
+                continue;
+            }
+            int idx = spread(hashes[oldHeads[b]]) & tableMask;
+            while (heads[WK + idx] != -1) {
+                idx = (idx + 1) & tableMask;
+            }
+            heads[WK + idx] = oldHeads[b];
+            tails[WK + idx] = oldTails[b];
+        }
+    }
+
+    private boolean sameName(int entry, String name, byte[] src, int start, int end) {
+        if (names[entry] != null) {
+            return sameName(names[entry], name, src, start, end);
+        }
+        int s = slices[entry * 4];
+        int len = slices[entry * 4 + 1] - s;
+        if (name != null) {
+            return sameName(name, raw, s, s + len);
+        }
+        if (end - start != len) {
+            return false;
+        }
+        for (int k = 0; k < len; k++) {
+            if (fold(raw[s + k]) != fold(src[start + k])) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static boolean sameName(String known, String name, byte[] src, int start, int end) {
+        return name != null ? known.equalsIgnoreCase(name) : sameName(known, src, start, end);
+    }
+
+    private static boolean sameName(String name, byte[] src, int start, int end) {
+        if (end - start != name.length()) {
+            return false;
+        }
+        for (int k = 0; k < name.length(); k++) {
+            if (fold(src[start + k]) != fold(name.charAt(k))) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static int hash(String name) {
+        int h = 0;
+        for (int i = 0; i < name.length(); i++) {
+            h = 31 * h + fold(name.charAt(i));
+        }
+        return h;
+    }
+
+    private static int hash(byte[] src, int start, int end) {
+        int h = 0;
+        for (int i = start; i < end; i++) {
+            h = 31 * h + fold(src[i]);
+        }
+        return h;
+    }
+
+    private static int spread(int h) {
+        return h ^ (h >>> 16);
+    }
+
+    private static int fold(int c) {
+        c &= 0xff;
+        return (c >= 'A' && c <= 'Z') ? c + 32 : c;
+    }
+
+    private static int fold(char c) {
+        return (c >= 'A' && c <= 'Z') ? c + 32 : c;
+    }
+}
@@ -2,10 +2,9 @@ package http;
 
 import java.io.IOException;
 import java.nio.ByteBuffer;
-import java.nio.channels.FileChannel;
 import java.nio.charset.StandardCharsets;
-import java.nio.file.*;
 import java.util.*;
+import java.util.function.Function;
 import session.Session;
 import utils.json.AppConfig;
 
@@ -26,10 +25,13 @@ public class HttpRequest {
     private final List<AppConfig.ServerConfig> serverCfgs = new ArrayList<>();
     private AppConfig.ServerConfig chosenServer = null;
 
-    private final ByteArray headerBytes = new ByteArray(8192);
-    private int headerEndIndex = -1;
+    private static final int MAX_HEAD_BYTES = 64 * 1024;
 
-    private final Map<String, String> headers = new HashMap<>();
+    // the raw request line and headers; header values are decoded from it only when asked for
+    private byte[] head;
+    private ByteArray partialHead; // only when the head arrives over several reads
+
+    private final HttpHeaders headers = new HttpHeaders();
     private String method, path, version;
 
     private boolean isChunked = false;
@@ -38,8 +40,10 @@ public class HttpRequest {
     private long maxBodyBytes;
     private long bodyWritten = 0;
 
-    private Path bodyFile;
-    private FileChannel bodyChannel;
+    // asked once the head is parsed; a null sink keeps the body in a RequestBody
+    private final Function<HttpRequest, BodySink> sinks;
+    private BodySink sink;
+    private RequestBody body;
     private Session session;
 
     private final ByteArray lineBuf = new ByteArray(128);
@@ -49,7 +53,12 @@ public class HttpRequest {
     private static final int MAX_WRITE_PER_CALL = 8192;
 
     public HttpRequest(List<AppConfig.ServerConfig> serverCfgs) {
+        this(serverCfgs, null);
+    }
+
+    public HttpRequest(List<AppConfig.ServerConfig> serverCfgs, Function<HttpRequest, BodySink> sinks) {
         this.serverCfgs.addAll(serverCfgs);
+        this.sinks = sinks;
     }
 
     public void consume(ByteBuffer buf) throws IOException {
@@ -81,75 +90,124 @@ public class HttpRequest {
     }
 
     private void readHeaders(ByteBuffer buf) throws IOException {
-        while (buf.hasRemaining()) {
-            byte b = buf.get();
-            headerBytes.add(b);
-
-            if (headerBytes.size() >= 4) {
-                int n = headerBytes.size();
-                if (headerBytes.get(n - 4) == '\r' && headerBytes.get(n - 3) == '\n'
-                        && headerBytes.get(n - 2) == '\r' && headerBytes.get(n - 1) == '\n') {
-                    headerEndIndex = n - 4;
-                    parseHeaders();
-                    decideBodyMode();
-                    return;
+        int start = buf.position();
+
+        if (partialHead == null) {
+            // usual case: the whole head is in this read, so it is copied out once at its exact size
+            int end = findHeadEnd(buf, start, buf.limit());
+            if (end != -1) {
+                if (end - start > MAX_HEAD_BYTES) {
+                    state = State.DONE;
+                    throw new IllegalArgumentException("400");
                 }
+                head = new byte[end - start];
+                buf.get(head);
+                parseHeaders(head.length - 4);
+                decideBodyMode();
+                return;
             }
+            partialHead = new ByteArray(Math.max(1024, (buf.limit() - start) * 2));
+        }
 
-            if (headerBytes.size() > 64 * 1024) {
+        // the terminator may straddle reads, so the search restarts three bytes back
+        int old = partialHead.size();
+        partialHead.addAll(buf);
+        int end = findHeadEnd(ByteBuffer.wrap(partialHead.a, 0, partialHead.size()),
+                Math.max(0, old - 3), partialHead.size());
+        if (end == -1) {
+            if (partialHead.size() > MAX_HEAD_BYTES) {
                 state = State.DONE;
                 throw new IllegalArgumentException("400");
             }
+            return;
         }
-    }
-
-    private void parseHeaders() {
-        String headerText = new String(headerBytes.toArray(0, headerEndIndex), StandardCharsets.ISO_8859_1);
-        String[] lines = headerText.split("\r\n");
-
-        if (lines.length == 0) {
+        if (end > MAX_HEAD_BYTES) {
             state = State.DONE;
             throw new IllegalArgumentException("400");
         }
 
-        String[] reqLine = lines[0].split(" ");
-        if (reqLine.length < 3) {
-            state = State.DONE;
-            throw new IllegalArgumentException("400");
+        // hand the bytes past the head back to the caller's buffer
+        buf.position(buf.position() - (partialHead.size() - end));
+        head = partialHead.toArray(0, end);
+        partialHead = null;
+        parseHeaders(head.length - 4);
+        decideBodyMode();
+    }
+
+    private static final long CR_BYTES = 0x0d0d0d0d0d0d0d0dL;
+    private static final long LOW_BITS = 0x0101010101010101L;
+    private static final long HIGH_BITS = 0x8080808080808080L;
+
+    // offset just past the first CRLFCRLF in [from, to), or -1. Eight bytes are tested for a CR at
+    // a time (SWAR), so header bytes are only looked at one by one around a CR.
+    private static int findHeadEnd(ByteBuffer b, int from, int to) {
+        int i = from;
+        for (; i + 8 <= to; i += 8) {
+            long x = b.getLong(i) ^ CR_BYTES;
+            if (((x - LOW_BITS) & ~x & HIGH_BITS) == 0) {
+                continue;
+            }
+            for (int j = i; j < i + 8; j++) {
+                if (isHeadEnd(b, j, to)) {
+                    return j + 4;
+                }
+            }
+        }
+        for (; i < to; i++) {
+            if (isHeadEnd(b, i, to)) {
+                return i + 4;
+            }
         }
+        return -1;
+    }
+
+    private static boolean isHeadEnd(ByteBuffer b, int i, int to) {
+        return i + 3 < to && b.get(i) == '\r' && b.get(i + 1) == '\n'
+                && b.get(i + 2) == '\r' && b.get(i + 3) == '\n';
+    }
 
-        method = reqLine[0].toUpperCase();
-        path = reqLine[1];
-        version = reqLine[2];
+    private static final String[] METHODS = {"GET", "POST", "DELETE", "PUT", "PATCH", "HEAD"};
+    private static final String[] VERSIONS = {"HTTP/1.1", "HTTP/1.0"};
 
-        if (!version.startsWith("HTTP/")) {
+    // records offsets only; nothing but the method, target and version becomes a String here
+    private void parseHeaders(int headEnd) {
+        byte[] h = head;
+        int lineEnd = indexOfCrlf(h, 0, headEnd);
+
+        int sp1 = indexOf(h, (byte) ' ', 0, lineEnd);
+        int sp2 = sp1 == -1 ? -1 : indexOf(h, (byte) ' ', sp1 + 1, lineEnd);
+        if (sp2 == -1) {
             state = State.DONE;
             throw new IllegalArgumentException("400");
         }
 
-        if (!method.equals("GET") && !method.equals("POST") && !method.equals("DELETE")
-                && !method.equals("PUT") && !method.equals("PATCH") && !method.equals("HEAD")) {
+        method = lookup(METHODS, h, 0, sp1, true);
+        path = new String(h, sp1 + 1, sp2 - sp1 - 1, StandardCharsets.ISO_8859_1);
+        version = lookup(VERSIONS, h, sp2 + 1, lineEnd, false);
+        if (version == null && lineEnd - sp2 - 1 >= 5 && startsWith(h, sp2 + 1, "HTTP/")) {
+            version = new String(h, sp2 + 1, lineEnd - sp2 - 1, StandardCharsets.ISO_8859_1);
+        }
+
+        if (version == null || method == null) {
             state = State.DONE;
             throw new IllegalArgumentException("400");
         }
 
-        for (int i = 1; i < lines.length; i++) {
-            String line = lines[i];
-            if (line.isEmpty()) {
-                break;
+        int pos = lineEnd + 2;
+        while (pos < headEnd) {
+            int end = indexOfCrlf(h, pos, headEnd);
+            int colon = indexOf(h, (byte) ':', pos, end);
+            if (colon != -1) {
+                int ns = trimStart(h, pos, colon);
+                int ne = trimEnd(h, ns, colon);
+                int vs = trimStart(h, colon + 1, end);
+                int ve = trimEnd(h, vs, end);
+                headers.addRaw(h, ns, ne, vs, ve);
             }
-
-            int idx = line.indexOf(':');
-            if (idx == -1) {
-                continue;
-            }
-
-            String k = line.substring(0, idx).trim();
-            String v = line.substring(idx + 1).trim();
-            headers.put(k, v);
+            pos = end + 2;
         }
 
-        String hostHeader = getHeaderIgnoreCase(this.getHeaders(), "Host");
+        String hostHeader = headers.get(HttpHeaders.HOST);
         this.chosenServer = chooseServerByHost(this.serverCfgs, hostHeader);
 
         if (this.chosenServer == null) {
@@ -163,10 +221,10 @@ public class HttpRequest {
     }
 
     private void decideBodyMode() throws IOException {
-        String host = getHeaderIgnoreCase(headers, "Host");
-        String cl = getHeaderIgnoreCase(headers, "Content-Length");
-        String ct = getHeaderIgnoreCase(headers, "Content-Type");
-        String te = getHeaderIgnoreCase(headers, "Transfer-Encoding");
+        String host = headers.get(HttpHeaders.HOST);
+        String cl = headers.get(HttpHeaders.CONTENT_LENGTH);
+        String ct = headers.get(HttpHeaders.CONTENT_TYPE);
+        String te = headers.get(HttpHeaders.TRANSFER_ENCODING);
 
         if ("HTTP/1.1".equals(version) && host == null) {
             state = State.DONE;
@@ -191,12 +249,19 @@ public class HttpRequest {
 
         if (te != null && te.toLowerCase().contains("chunked")) {
             isChunked = true;
-            openBodyFile();
+            openBody(0);
             state = State.CHUNK_SIZE_LINE;
             return;
         }
 
         if (cl != null) {
+            // get() only sees the first copy; repeats must agree or the body length is ambiguous
+            for (String other : headers.getAll("Content-Length")) {
+                if (!other.trim().equals(cl.trim())) {
+                    state = State.DONE;
+                    throw new IllegalArgumentException("400");
+                }
+            }
             try {
                 contentLength = Long.parseLong(cl.trim());
             } catch (NumberFormatException e) {
@@ -217,7 +282,7 @@ public class HttpRequest {
                 throw new IllegalArgumentException("413");
             }
 
-            openBodyFile();
+            openBody(contentLength);
             state = State.BODY_FIXED;
             return;
         }
@@ -225,23 +290,18 @@ public class HttpRequest {
         state = State.DONE;
     }
 
-    private void openBodyFile() throws IOException {
-        if (bodyChannel != null) {
+    private void openBody(long expectedSize) throws IOException {
+        if (sink != null) {
             return;
         }
-
-        Path tempDir = Paths.get("myapp_tmp");
-        if (!Files.exists(tempDir)) {
-            Files.createDirectories(tempDir);
+        if (sinks != null) {
+            sink = sinks.apply(this);
+            if (sink != null) {
+                return;
+            }
         }
-
-        bodyFile = Files.createTempFile(tempDir, "reqbody_", ".txt");
-
-        bodyChannel = FileChannel.open(
-                bodyFile,
-                StandardOpenOption.WRITE,
-                StandardOpenOption.CREATE,
-                StandardOpenOption.TRUNCATE_EXISTING);
+        body = new RequestBody(chosenServer.clientBodyBufferSize, chosenServer.clientBodyFsync, expectedSize);
+        sink = body;
     }
 
     private void readFixedBody(ByteBuffer buf) throws IOException {
@@ -258,9 +318,7 @@ public class HttpRequest {
             return;
         }
 
-        byte[] chunk = new byte[toWrite];
-        buf.get(chunk);
-        writeBodyBytes(chunk, 0, toWrite);
+        writeBodyBytes(buf, toWrite);
 
         if (bodyWritten >= contentLength) {
             finishBody();
@@ -316,9 +374,7 @@ public class HttpRequest {
         toWrite = Math.min(toWrite, MAX_WRITE_PER_CALL);
 
         if (toWrite > 0) {
-            byte[] chunk = new byte[toWrite];
-            buf.get(chunk);
-            writeBodyBytes(chunk, 0, toWrite);
+            writeBodyBytes(buf, toWrite);
             remainingChunkBytes -= toWrite;
         }
 
@@ -343,18 +399,20 @@ public class HttpRequest {
         state = State.CHUNK_SIZE_LINE;
     }
 
+    // trailer fields are skipped line by line; the empty line ends the body
     private void readChunkTrailers(ByteBuffer buf) throws IOException {
         while (buf.hasRemaining()) {
             byte b = buf.get();
             lineBuf.add(b);
 
             int n = lineBuf.size();
-            if (n >= 4
-                    && lineBuf.get(n - 4) == '\r' && lineBuf.get(n - 3) == '\n'
-                    && lineBuf.get(n - 2) == '\r' && lineBuf.get(n - 1) == '\n') {
+            if (n >= 2 && lineBuf.get(n - 2) == '\r' && lineBuf.get(n - 1) == '\n') {
                 lineBuf.clear();
-                finishBody();
-                return;
+                if (n == 2) {
+                    finishBody();
+                    return;
+                }
+                continue;
             }
 
             if (lineBuf.size() > 8 * 1024) {
@@ -364,42 +422,30 @@ public class HttpRequest {
         }
     }
 
-    private void writeBodyBytes(byte[] b, int off, int len) throws IOException {
+    // hands the next len bytes of buf to the body without copying them out first
+    private void writeBodyBytes(ByteBuffer buf, int len) throws IOException {
         bodyWritten += len;
         if (bodyWritten > maxBodyBytes) {
             state = State.DONE;
             throw new IllegalArgumentException("413");
         }
 
-        ByteBuffer buffer = ByteBuffer.wrap(b, off, len);
-        while (buffer.hasRemaining()) {
-            bodyChannel.write(buffer);
-        }
+        int limit = buf.limit();
+        buf.limit(buf.position() + len);
+        sink.write(buf);
+        buf.limit(limit);
     }
 
     private void finishBody() throws IOException {
-        if (bodyChannel != null) {
-            bodyChannel.force(false);
-            bodyChannel.close();
-            bodyChannel = null;
+        if (sink != null) {
+            sink.finish();
         }
         state = State.DONE;
     }
 
     public void closeBodyStreamIfOpen() throws IOException {
-        if (bodyChannel != null) {
-            try {
-                bodyChannel.close();
-            } catch (Exception ignored) {
-            }
-            bodyChannel = null;
-        }
-
-        if (bodyFile != null && Files.exists(bodyFile)) {
-            try {
-                Files.delete(bodyFile);
-            } catch (Exception ignored) {
-            }
+        if (sink != null) {
+            sink.release();
         }
     }
 
@@ -419,16 +465,85 @@ public class HttpRequest {
         return version;
     }
 
-    public Map<String, String> getHeaders() {
+    public HttpHeaders getHeaders() {
         return headers;
     }
 
     public String getHeader(String key) {
-        return getHeaderIgnoreCase(headers, key);
+        return key == null ? null : headers.get(key);
+    }
+
+    private static byte toLower(byte b) {
+        return (b >= 'A' && b <= 'Z') ? (byte) (b + 32) : b;
+    }
+
+    // returns the shared constant, so method and version checks elsewhere never see a fresh String
+    private static String lookup(String[] table, byte[] h, int start, int end, boolean ignoreCase) {
+        for (String s : table) {
+            if (s.length() != end - start) {
+                continue;
+            }
+            boolean match = true;
+            for (int i = 0; i < s.length() && match; i++) {
+                byte b = ignoreCase ? toLower(h[start + i]) : h[start + i];
+                match = b == (ignoreCase ? toLower((byte) s.charAt(i)) : (byte) s.charAt(i));
+            }
+            if (match) {
+                return s;
+            }
+        }
+        return null;
+    }
+
+    private static boolean startsWith(byte[] h, int start, String prefix) {
+        for (int i = 0; i < prefix.length(); i++) {
+            if (h[start + i] != prefix.charAt(i)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static int indexOf(byte[] h, byte b, int from, int to) {
+        for (int i = from; i < to; i++) {
+            if (h[i] == b) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    private static int indexOfCrlf(byte[] h, int from, int to) {
+        for (int i = from; i + 1 < to; i++) {
+            if (h[i] == '\r' && h[i + 1] == '\n') {
+                return i;
+            }
+        }
+        return to;
+    }
+
+    private static int trimStart(byte[] h, int from, int to) {
+        while (from < to && (h[from] == ' ' || h[from] == '\t')) {
+            from++;
+        }
+        return from;
+    }
+
+    private static int trimEnd(byte[] h, int from, int to) {
+        while (to > from && (h[to - 1] == ' ' || h[to - 1] == '\t')) {
+            to--;
+        }
+        return to;
+    }
+
+    // null when the request had no body or it went to another sink
+    public RequestBody getBody() {
+        return body;
     }
 
-    public Path getBodyFile() {
-        return bodyFile;
+    // whatever received the body, or null when there was none
+    public BodySink getBodySink() {
+        return sink;
     }
 
     public long getContentLength() {
@@ -443,18 +558,6 @@ public class HttpRequest {
         return chosenServer;
     }
 
-    public static String getHeaderIgnoreCase(Map<String, String> headers, String key) {
-        if (headers == null || key == null) {
-            return null;
-        }
-        for (String k : headers.keySet()) {
-            if (k != null && k.equalsIgnoreCase(key)) {
-                return headers.get(k);
-            }
-        }
-        return null;
-    }
-
     public static AppConfig.ServerConfig chooseServerByHost(
             List<AppConfig.ServerConfig> cfgs, String hostHeader) {
 
@@ -505,6 +608,15 @@ public class HttpRequest {
             a[n++] = b;
         }
 
+        void addAll(ByteBuffer src) {
+            int len = src.remaining();
+            while (n + len > a.length) {
+                a = grow(a);
+            }
+            src.get(a, n, len);
+            n += len;
+        }
+
         int size() {
             return n;
         }
@@ -3,34 +3,58 @@ package http;
 import java.io.IOException;
 import java.nio.ByteBuffer;
 import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
 import java.nio.charset.StandardCharsets;
 import java.nio.file.Files;
 import java.nio.file.Path;
 import java.nio.file.Paths;
 import java.nio.file.StandardOpenOption;
-import java.util.Arrays;
-import java.util.HashMap;
-import java.util.Map;
+import java.util.ArrayDeque;
+import java.util.List;
+import java.util.concurrent.ThreadLocalRandom;
 
 public class HttpResponse {
 
     private String version = "HTTP/1.1";
     private int statusCode;
     private String statusMessage;
-    private Map<String, String> headers = new HashMap<>();
+    private final HttpHeaders headers = new HttpHeaders();
     private byte[] body = new byte[0];
 
     private Path bodyFile;
     private FileChannel bodyFileChannel;
     public long bodyFileSize;
-    private long bodyFileSent = 0;
+
+    // a read-only view of a shared mapping; the release hook drops this response's reference
+    private ByteBuffer mappedBody;
+    private Runnable mappedRelease;
+
+    // what is left to send after the headers: ByteBuffers (part headers, mapped or in-memory
+    // slices) and FileRegions of bodyFileChannel, drained front to back
+    private final ArrayDeque<Object> bodySegments = new ArrayDeque<>();
+    private boolean segmentedBody = false;
+
+    private static final class FileRegion {
+
+        long position;
+        final long end;
+
+        FileRegion(long position, long end) {
+            this.position = position;
+            this.end = end;
+        }
+    }
 
     private boolean headersSent = false;
 
+    // a chunked body produced by another thread while the loop is already writing it; each entry
+    // is one framed chunk, and appendBody blocks once MAX_STREAMED_BYTES are waiting
+    private static final long MAX_STREAMED_BYTES = 1024 * 1024;
     private boolean chunked = false;
-
-    private java.io.ByteArrayOutputStream dynamicBody = new java.io.ByteArrayOutputStream();
+    private final ArrayDeque<ByteBuffer> streamed = new ArrayDeque<>();
+    private long streamedBytes = 0;
     private boolean streamingFinished = false;
+    private boolean streamingAborted = false;
 
     public HttpResponse(int code, String message) {
         this.statusCode = code;
@@ -38,104 +62,238 @@ public class HttpResponse {
     }
 
     public void setHeaders(String key, String value) {
-        headers.put(key, value);
+        headers.set(key, value);
+    }
+
+    // for fields that may repeat, such as Set-Cookie
+    public void addHeader(String key, String value) {
+        headers.add(key, value);
     }
 
     public void setBody(byte[] body) {
         this.body = body;
     }
 
-    public synchronized void appendBody(byte[] data, int len) {
+    // queues one chunk; returns false once the response was closed and nobody will read it
+    public synchronized boolean appendBody(byte[] data, int off, int len) throws InterruptedException {
         if (data == null || len <= 0) {
-            return;
+            return !streamingAborted;
         }
-        dynamicBody.write(data, 0, len);
+        while (streamedBytes >= MAX_STREAMED_BYTES && !streamingAborted) {
+            wait();
+        }
+        if (streamingAborted) {
+            return false;
+        }
+        byte[] size = (Integer.toHexString(len) + "\r\n").getBytes(StandardCharsets.US_ASCII);
+        ByteBuffer chunk = ByteBuffer.allocate(size.length + len + 2);
+        chunk.put(size).put(data, off, len).put((byte) '\r').put((byte) '\n').flip();
+        streamed.add(chunk);
+        streamedBytes += chunk.remaining();
+        return true;
+    }
+
+    // ends the queue without the last chunk; the writer sees the body as done once it drains
+    public synchronized void breakStreaming() {
+        streamingFinished = true;
+        notifyAll();
     }
 
     public synchronized void finishStreaming() {
-        this.streamingFinished = true;
+        if (!streamingFinished) {
+            streamed.add(ByteBuffer.wrap("0\r\n\r\n".getBytes(StandardCharsets.US_ASCII)));
+            streamingFinished = true;
+        }
     }
 
+    // the body follows as appendBody calls; the headers can go out before the first one
     public void enableChunked() {
         this.chunked = true;
-        headers.put("Transfer-Encoding", "chunked");
+        headers.remove("Content-Length");
+        headers.set("Transfer-Encoding", "chunked");
+        segmentedBody = true;
+    }
+
+    // a streamed body with nothing queued yet; the writer waits for the producer instead of spinning
+    public synchronized boolean awaitingBody() {
+        return chunked && streamed.isEmpty() && !streamingFinished;
     }
 
     public void setBodyFile(Path file) throws IOException {
         this.bodyFile = file;
         this.bodyFileSize = Files.size(file);
         this.bodyFileChannel = FileChannel.open(file, StandardOpenOption.READ);
-        headers.put("Content-Length", String.valueOf(bodyFileSize));
+        headers.set("Content-Length", String.valueOf(bodyFileSize));
+        bodySegments.clear();
+        if (bodyFileSize > 0) {
+            bodySegments.add(new FileRegion(0, bodyFileSize));
+        }
+        segmentedBody = true;
     }
 
-    public ByteBuffer getNextChunk(int maxSize) {
-        if (!headersSent) {
-            ByteBuffer headerBuf = buildHeaders();
-            headersSent = true;
-            return headerBuf;
+    public void setMappedBody(ByteBuffer body, Runnable release) {
+        this.mappedBody = body;
+        this.mappedRelease = release;
+        headers.set("Content-Length", String.valueOf(body.remaining()));
+        bodySegments.clear();
+        if (body.hasRemaining()) {
+            bodySegments.add(body);
         }
-        if (bodyFile != null && bodyFileChannel != null) {
-            long remaining = bodyFileSize - bodyFileSent;
-            if (remaining <= 0) {
-                return null;
-            }
+        segmentedBody = true;
+    }
 
-            int toRead = (int) Math.min(remaining, maxSize);
-            ByteBuffer buf = ByteBuffer.allocate(toRead);
-            try {
+    // true when the body is sent after the headers through transferFileBody rather than inline
+    public boolean hasFileBody() {
+        return segmentedBody;
+    }
 
-                int read = bodyFileChannel.read(buf);
-                if (read > 0) {
-                    bodyFileSent += read;
-                    buf.flip();
-                    return buf;
-                }
+    // length of the full representation, before any range is applied
+    public long getEntityLength() {
+        if (bodyFileChannel != null) {
+            return bodyFileSize;
+        }
+        if (mappedBody != null) {
+            return mappedBody.capacity();
+        }
+        return body.length;
+    }
+
+    // turns the response into a 206 for one inclusive byte range of the full body
+    public void setSingleRange(long start, long end) {
+        long total = getEntityLength();
+        bodySegments.clear();
+        bodySegments.add(rangeSegment(start, end + 1));
+        segmentedBody = true;
+        statusCode = 206;
+        statusMessage = "Partial Content";
+        headers.set("Content-Range", "bytes " + start + "-" + end + "/" + total);
+        headers.set("Content-Length", String.valueOf(end - start + 1));
+    }
+
+    // turns the response into a 206 multipart/byteranges body, one part per inclusive range
+    public void setMultipartRanges(List<long[]> ranges) {
+        long total = getEntityLength();
+        String type = headers.get(HttpHeaders.CONTENT_TYPE);
+        if (type == null) {
+            type = "application/octet-stream";
+        }
+        String boundary = Long.toHexString(ThreadLocalRandom.current().nextLong() | Long.MIN_VALUE);
+
+        bodySegments.clear();
+        long length = 0;
+        for (int i = 0; i < ranges.size(); i++) {
+            long start = ranges.get(i)[0];
+            long end = ranges.get(i)[1];
+            byte[] partHeader = ((i == 0 ? "" : "\r\n") + "--" + boundary + "\r\n"
+                    + "Content-Type: " + type + "\r\n"
+                    + "Content-Range: bytes " + start + "-" + end + "/" + total + "\r\n\r\n")
+                    .getBytes(StandardCharsets.US_ASCII);
+            bodySegments.add(ByteBuffer.wrap(partHeader));
+            bodySegments.add(rangeSegment(start, end + 1));
+            length += partHeader.length + (end - start + 1);
+        }
+        byte[] closing = ("\r\n--" + boundary + "--\r\n").getBytes(StandardCharsets.US_ASCII);
+        bodySegments.add(ByteBuffer.wrap(closing));
+        length += closing.length;
+
+        segmentedBody = true;
+        statusCode = 206;
+        statusMessage = "Partial Content";
+        headers.set("Content-Type", "multipart/byteranges; boundary=" + boundary);
+        headers.set("Content-Length", String.valueOf(length));
+    }
+
+    private Object rangeSegment(long start, long endExclusive) {
+        if (bodyFileChannel != null) {
+            return new FileRegion(start, endExclusive);
+        }
+        ByteBuffer src = mappedBody != null ? mappedBody : ByteBuffer.wrap(body);
+        return src.duplicate().position((int) start).limit((int) endExclusive);
+    }
+
+    // replaces the in-memory body with its gzip encoding and fixes up the entity headers
+    public void encodeBodyGzip(int level) {
+        body = GzipEncoder.gzip(body, level);
+        headers.set("Content-Encoding", "gzip");
+        headers.set("Content-Length", String.valueOf(body.length));
+        headers.set("Vary", "Accept-Encoding");
+    }
+
+    // status line and headers for a response whose body is sent separately
+    public ByteBuffer headerBuffer() {
+        headersSent = true;
+        return buildHeaders();
+    }
 
-                return null;
-            } catch (Exception e) {
-                System.out.println("Error reading body file: " + e.getMessage());
-                return null;
+    public boolean hasRemainingFileBody() {
+        if (chunked) {
+            synchronized (this) {
+                return !streamed.isEmpty() || !streamingFinished;
             }
+        }
+        return !bodySegments.isEmpty();
+    }
 
-        } else {
-            if (chunked) {
-                synchronized (this) {
-                    byte[] data = dynamicBody.toByteArray();
-                    if (data.length > 0) {
-                        int toSend = Math.min(data.length, maxSize);
-                        byte[] part = Arrays.copyOfRange(data, 0, toSend);
-                        dynamicBody.reset();
-                        if (toSend < data.length) {
-                            dynamicBody.write(data, toSend, data.length - toSend);
-                        }
-
-                        String lenHex = Integer.toHexString(part.length);
-                        byte[] header = (lenHex + "\r\n").getBytes(StandardCharsets.UTF_8);
-                        byte[] footer = "\r\n".getBytes(StandardCharsets.UTF_8);
-
-                        ByteBuffer buf = ByteBuffer.allocate(header.length + part.length + footer.length);
-                        buf.put(header);
-                        buf.put(part);
-                        buf.put(footer);
-                        buf.flip();
-                        return buf;
-                    } else {
-                        if (streamingFinished) {
-                            ByteBuffer buf = ByteBuffer.wrap("0\r\n\r\n".getBytes(StandardCharsets.UTF_8));
-                            return buf;
-                        }
-                        return null;
-                    }
-                }
-            } else {
-                if (body.length == 0) {
-                    return null;
-                }
+    // file regions go through transferTo, so the kernel copies the file straight to the socket
+    // (sendfile on Linux); returns 0 when the socket is full
+    public long transferFileBody(WritableByteChannel target, long maxBytes) throws IOException {
+        if (chunked) {
+            return transferStreamed(target, maxBytes);
+        }
+        Object seg = bodySegments.peekFirst();
+        if (seg == null) {
+            return 0;
+        }
+        if (seg instanceof ByteBuffer) {
+            ByteBuffer buf = (ByteBuffer) seg;
+            long n = writeSegment(buf, target, maxBytes);
+            if (!buf.hasRemaining()) {
+                bodySegments.pollFirst();
+            }
+            return n;
+        }
 
-                byte[] bodyBytes = body;
-                body = new byte[0];
-                return ByteBuffer.wrap(bodyBytes);
+        FileRegion r = (FileRegion) seg;
+        long count = Math.min(r.end - r.position, maxBytes);
+        long n = bodyFileChannel.transferTo(r.position, count, target);
+        if (n > 0) {
+            r.position += n;
+            if (r.position >= r.end) {
+                bodySegments.pollFirst();
             }
+        } else if (bodyFileChannel.size() <= r.position) {
+            // the file shrank after Content-Length went out; waiting for OP_WRITE would spin forever
+            throw new IOException("Body file truncated: " + bodyFile);
+        }
+        return n;
+    }
+
+    private synchronized long transferStreamed(WritableByteChannel target, long maxBytes) throws IOException {
+        ByteBuffer chunk = streamed.peekFirst();
+        if (chunk == null) {
+            return 0;
+        }
+        long n = writeSegment(chunk, target, maxBytes);
+        if (!chunk.hasRemaining()) {
+            streamed.pollFirst();
+            streamedBytes -= chunk.capacity();
+            notifyAll();
+        }
+        return n;
+    }
+
+    private static long writeSegment(ByteBuffer buf, WritableByteChannel target, long maxBytes) throws IOException {
+        int limit = buf.limit();
+        if (buf.remaining() > maxBytes) {
+            buf.limit(buf.position() + (int) maxBytes);
+        }
+        try {
+            return target.write(buf);
+        } catch (InternalError e) {
+            // the JVM reports a fault on a mapping whose file was truncated underneath it this way
+            throw new IOException("Mapped body file truncated", e);
+        } finally {
+            buf.limit(limit);
         }
     }
 
@@ -151,10 +309,23 @@ public class HttpResponse {
     //     }
     // }
     public void close() throws IOException {
+        if (chunked) {
+            synchronized (this) {
+                streamingAborted = true;
+                streamed.clear();
+                notifyAll();
+            }
+        }
         if (bodyFileChannel != null) {
             bodyFileChannel.close();
             bodyFileChannel = null;
         }
+        bodySegments.clear();
+        if (mappedRelease != null) {
+            mappedBody = null;
+            mappedRelease.run();
+            mappedRelease = null;
+        }
     }
 
     private ByteBuffer buildHeaders() {
@@ -167,21 +338,23 @@ public class HttpResponse {
                 .append(statusMessage)
                 .append("\r\n");
 
-        if (!headers.containsKey("Content-Length") && !headers.containsKey("Transfer-Encoding")) {
+        // 204 and 304 never carry a body, so they get no framing headers either
+        boolean bodiless = statusCode == 204 || statusCode == 304;
+        if (!bodiless && !headers.contains("Content-Length") && !headers.contains("Transfer-Encoding")) {
             if (bodyFile != null) {
-                headers.put("Content-Length", String.valueOf(bodyFileSize));
+                headers.set("Content-Length", String.valueOf(bodyFileSize));
+            } else if (mappedBody != null) {
+                headers.set("Content-Length", String.valueOf(mappedBody.remaining()));
             } else {
                 byte[] bodyBytes = body;
-                headers.put("Content-Length", String.valueOf(bodyBytes.length));
+                headers.set("Content-Length", String.valueOf(bodyBytes.length));
             }
         }
 
-        for (Map.Entry<String, String> h : headers.entrySet()) {
-            headerBuilder.append(h.getKey())
-                    .append(": ")
-                    .append(h.getValue())
-                    .append("\r\n");
-        }
+        headers.forEach((name, value) -> headerBuilder.append(name)
+                .append(": ")
+                .append(value)
+                .append("\r\n"));
 
         headerBuilder.append("\r\n");
 
@@ -192,14 +365,14 @@ public class HttpResponse {
 
     public ByteBuffer toByteBuffer() {
         try {
-            if (bodyFile != null) {
+            if (hasFileBody()) {
                 return buildHeaders();
             }
 
             byte[] bodyBytes = body;
 
-            if (!headers.containsKey("Content-Length")) {
-                headers.put("Content-Length", String.valueOf(bodyBytes.length));
+            if (!headers.contains("Content-Length") && statusCode != 204 && statusCode != 304) {
+                headers.set("Content-Length", String.valueOf(bodyBytes.length));
             }
 
             ByteBuffer headerBuf = buildHeaders();
@@ -261,17 +434,27 @@ public class HttpResponse {
     }
 
     public void setConnectionFromRequest(HttpRequest req) {
-        String connHeader = req.getHeader("Connection");
-        if (connHeader != null && connHeader.equalsIgnoreCase("close")) {
-            headers.put("Connection", "close");
-        } else {
-            // default keep-alive if HTTP/1.1
-            if ("HTTP/1.1".equals(req.getVersion())) {
-                headers.put("Connection", "keep-alive");
-            } else {
-                headers.put("Connection", "close");
+        headers.set("Connection", isKeepAlive(req) ? "keep-alive" : "close");
+    }
+
+    // HTTP/1.1 defaults to persistent connections, HTTP/1.0 has to ask for it
+    public static boolean isKeepAlive(HttpRequest req) {
+        if (req == null) {
+            return false;
+        }
+        String connHeader = req.getHeaders().get(HttpHeaders.CONNECTION);
+        if (connHeader != null) {
+            for (String token : connHeader.split(",")) {
+                String t = token.trim();
+                if (t.equalsIgnoreCase("close")) {
+                    return false;
+                }
+                if (t.equalsIgnoreCase("keep-alive")) {
+                    return true;
+                }
             }
         }
+        return "HTTP/1.1".equals(req.getVersion());
     }
 
     public int getStatusCode() {
@@ -282,7 +465,7 @@ public class HttpResponse {
         return statusMessage;
     }
 
-    public Map<String, String> getHeaders() {
+    public HttpHeaders getHeaders() {
         return headers;
     }
 
@@ -290,6 +473,10 @@ public class HttpResponse {
         return new String(body, StandardCharsets.UTF_8);
     }
 
+    public int getBodyLength() {
+        return body.length;
+    }
+
     public Path getBodyFile() {
         return bodyFile;
     }
@@ -0,0 +1,230 @@
+package http;
+
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+import utils.BufferPool;
+
+/**
+ * A received request body. Small bodies stay in buffers borrowed from a shared pool; once a body
+ * outgrows the server's in-memory limit it is spilled to a temp file in myapp_tmp. Handlers read
+ * it through size() and openStream() and never need to know where it lives.
+ */
+public final class RequestBody implements BodySink {
+
+    private static final BufferPool BUFFERS = new BufferPool(16 * 1024, 16, 64L * 1024 * 1024);
+    private static final Path TEMP_DIR = Paths.get("myapp_tmp");
+
+    private final long memoryLimit;
+    private final boolean fsync;
+
+    private final List<BufferPool.PooledBuffer> chunks = new ArrayList<>();
+    private Path file;
+    private FileChannel channel;
+    private long size = 0;
+    // guarded by this; a stream still being read keeps the buffers and the file past release()
+    private boolean released = false;
+    private int openStreams = 0;
+
+    // a body announced as larger than the limit goes straight to disk
+    public RequestBody(long memoryLimit, boolean fsync, long expectedSize) throws IOException {
+        this.memoryLimit = memoryLimit;
+        this.fsync = fsync;
+        if (expectedSize > memoryLimit) {
+            spill();
+        }
+    }
+
+    @Override
+    public void write(ByteBuffer src) throws IOException {
+        int len = src.remaining();
+        if (channel == null && size + len > memoryLimit) {
+            spill();
+        }
+        size += len;
+
+        if (channel != null) {
+            while (src.hasRemaining()) {
+                channel.write(src);
+            }
+            return;
+        }
+
+        while (src.hasRemaining()) {
+            ByteBuffer last = chunks.isEmpty() ? null : chunks.get(chunks.size() - 1).buffer();
+            if (last == null || !last.hasRemaining()) {
+                chunks.add(BUFFERS.acquire());
+                continue;
+            }
+            int n = Math.min(last.remaining(), src.remaining());
+            int limit = src.limit();
+            src.limit(src.position() + n);
+            last.put(src);
+            src.limit(limit);
+        }
+    }
+
+    // the spill file is only forced to disk when the server asks for it
+    @Override
+    public void finish() throws IOException {
+        if (channel != null) {
+            if (fsync) {
+                channel.force(false);
+            }
+            channel.close();
+            channel = null;
+        }
+    }
+
+    public long size() {
+        return size;
+    }
+
+    public boolean inMemory() {
+        return file == null;
+    }
+
+    // may be read on another thread (CGI stdin) while the connection moves on
+    public synchronized InputStream openStream() throws IOException {
+        InputStream in;
+        if (file != null) {
+            in = Files.newInputStream(file);
+        } else {
+            List<ByteBuffer> views = new ArrayList<>(chunks.size());
+            for (BufferPool.PooledBuffer c : chunks) {
+                views.add(c.buffer().duplicate().flip());
+            }
+            in = new BuffersInputStream(views);
+        }
+        openStreams++;
+        return new TrackedStream(in);
+    }
+
+    // returns pooled buffers and deletes the spill file, once no stream is reading them
+    @Override
+    public synchronized void release() {
+        if (released) {
+            return;
+        }
+        released = true;
+        if (openStreams == 0) {
+            free();
+        }
+    }
+
+    private synchronized void streamClosed() {
+        if (--openStreams == 0 && released) {
+            free();
+        }
+    }
+
+    private void free() {
+        for (BufferPool.PooledBuffer c : chunks) {
+            BUFFERS.release(c);
+        }
+        chunks.clear();
+        if (channel != null) {
+            try {
+                channel.close();
+            } catch (IOException ignored) {
+            }
+            channel = null;
+        }
+        if (file != null) {
+            try {
+                Files.deleteIfExists(file);
+            } catch (IOException ignored) {
+            }
+        }
+    }
+
+    private void spill() throws IOException {
+        if (!Files.exists(TEMP_DIR)) {
+            Files.createDirectories(TEMP_DIR);
+        }
+        file = Files.createTempFile(TEMP_DIR, "reqbody_", ".txt");
+        channel = FileChannel.open(file, StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING);
+
+        for (BufferPool.PooledBuffer c : chunks) {
+            ByteBuffer b = c.buffer().flip();
+            while (b.hasRemaining()) {
+                channel.write(b);
+            }
+            BUFFERS.release(c);
+        }
+        chunks.clear();
+    }
+
+    private final class TrackedStream extends FilterInputStream {
+
+        private boolean closed = false;
+
+        TrackedStream(InputStream in) {
+            super(in);
+        }
+
+        @Override
+        public void close() throws IOException {
+            if (closed) {
+                return;
+            }
+            closed = true;
+            try {
+                super.close();
+            } finally {
+                streamClosed();
+            }
+        }
+    }
+
+    private static final class BuffersInputStream extends InputStream {
+
+        private final List<ByteBuffer> views;
+        private int index = 0;
+
+        BuffersInputStream(List<ByteBuffer> views) {
+            this.views = views;
+        }
+
+        private ByteBuffer current() {
+            while (index < views.size() && !views.get(index).hasRemaining()) {
+                index++;
+            }
+            return index < views.size() ? views.get(index) : null;
+        }
+
+        @Override
+        public int read() {
+            ByteBuffer b = current();
+            return b == null ? -1 : b.get() & 0xff;
+        }
+
+        @Override
+        public int read(byte[] dst, int off, int len) {
+            if (len == 0) {
+                return 0;
+            }
+            ByteBuffer b = current();
+            if (b == null) {
+                return -1;
+            }
+            int n = Math.min(len, b.remaining());
+            b.get(dst, off, n);
+            return n;
+        }
+
+        @Override
+        public int available() {
+            ByteBuffer b = current();
+            return b == null ? 0 : b.remaining();
+        }
+    }
+}
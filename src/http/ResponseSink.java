@@ -0,0 +1,24 @@
+package http;
+
+/**
+ * Where a handler delivers a response it produces after routing has returned, such as CGI
+ * output. Calls may come from any thread; the connection applies them on its event loop and
+ * turns on OP_WRITE once there is something to send. A response ends with end() when it is
+ * whole and with abort() when it is not.
+ */
+public interface ResponseSink {
+
+    // the response is ready to go out; after enableChunked() its body follows through write()
+    void publish(HttpResponse response);
+
+    // queues one chunk of a published chunked body; blocks while too much is waiting and
+    // returns false once the client is gone
+    boolean write(byte[] data, int off, int len) throws InterruptedException;
+
+    // the chunked body is complete
+    void end();
+
+    // the response cannot be completed: whatever was already queued is sent, then the
+    // connection is closed without ending the body, so the client cannot take it for whole
+    void abort();
+}
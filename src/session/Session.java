@@ -4,8 +4,8 @@ import java.time.Instant;
 
 public class Session {
 
-    private String sessionId;
-    private Instant expirationTime;
+    private final String sessionId;
+    private volatile Instant expirationTime;
 
     public Session(String sessionId, long expirationTime) {
         this.sessionId = sessionId;
@@ -6,7 +6,8 @@ import java.util.concurrent.ConcurrentHashMap;
 
 public class SessionManager {
 
-    private static Map<String, Session> sessions = new ConcurrentHashMap<>();
+    // shared by every event loop
+    private static final Map<String, Session> sessions = new ConcurrentHashMap<>();
 
     public static Session createSession(long expirationTime) {
         String sessionId = UUID.randomUUID().toString();
@@ -17,10 +18,13 @@ public class SessionManager {
     
     public static Session getSession(String sessionId) {
         Session session = sessions.get(sessionId);
-        if (session != null && !session.isExpired()) {
+        if (session == null) {
+            return null;
+        }
+        if (!session.isExpired()) {
             return session;
         }
-        sessions.remove(sessionId);
+        sessions.remove(sessionId, session);
         return null;
     }
 
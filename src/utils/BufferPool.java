@@ -0,0 +1,152 @@
+package utils;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Fixed-size direct buffers carved out of larger slabs. Buffers are borrowed for the
+ * duration of one read or write and handed back afterwards. Threads that live as long as the
+ * server (the event loops) keep a small cache in front of the shared free list so they rarely
+ * touch shared state; any other thread releases straight to the shared list, since a cache
+ * that dies with its thread would take its buffers out of the budget for good.
+ */
+public final class BufferPool {
+
+    public static final class PooledBuffer {
+
+        private final ByteBuffer buffer;
+        private final boolean pooled;
+        private final AtomicBoolean inUse = new AtomicBoolean();
+        private volatile long borrowedAt;
+
+        private PooledBuffer(ByteBuffer buffer, boolean pooled) {
+            this.buffer = buffer;
+            this.pooled = pooled;
+        }
+
+        public ByteBuffer buffer() {
+            return buffer;
+        }
+    }
+
+    private static final int LOCAL_CACHE_SIZE = 32;
+    private static final long LEAK_AGE_MS = 60_000;
+
+    private final int bufferSize;
+    private final int buffersPerSlab;
+    private final long maxPooledBytes;
+
+    private final ConcurrentLinkedQueue<PooledBuffer> shared = new ConcurrentLinkedQueue<>();
+    private final ThreadLocal<ArrayDeque<PooledBuffer>> local = ThreadLocal.withInitial(ArrayDeque::new);
+    private static final ThreadLocal<Boolean> CACHING = ThreadLocal.withInitial(() -> false);
+    private final AtomicInteger outstanding = new AtomicInteger();
+
+    // guarded by this
+    private final List<PooledBuffer> all = new ArrayList<>();
+    private long pooledBytes = 0;
+
+    public BufferPool(int bufferSize, int buffersPerSlab, long maxPooledBytes) {
+        this.bufferSize = bufferSize;
+        this.buffersPerSlab = buffersPerSlab;
+        this.maxPooledBytes = maxPooledBytes;
+    }
+
+    // called once by a thread that runs until shutdown, so its releases may stay local
+    public static void cacheOnThisThread() {
+        CACHING.set(true);
+    }
+
+    public PooledBuffer acquire() {
+        PooledBuffer b = CACHING.get() ? local.get().pollFirst() : null;
+        if (b == null) {
+            b = shared.poll();
+        }
+        if (b == null) {
+            b = allocateSlab();
+        }
+
+        b.buffer.clear();
+        b.inUse.set(true);
+        b.borrowedAt = System.currentTimeMillis();
+        outstanding.incrementAndGet();
+        return b;
+    }
+
+    public void release(PooledBuffer b) {
+        if (b == null) {
+            return;
+        }
+        if (!b.inUse.compareAndSet(true, false)) {
+            System.err.println("✗ BufferPool: buffer released twice");
+            return;
+        }
+        outstanding.decrementAndGet();
+
+        if (!b.pooled) {
+            return;
+        }
+        ArrayDeque<PooledBuffer> cache = CACHING.get() ? local.get() : null;
+        if (cache != null && cache.size() < LOCAL_CACHE_SIZE) {
+            cache.addFirst(b);
+        } else {
+            shared.add(b);
+        }
+    }
+
+    public int bufferSize() {
+        return bufferSize;
+    }
+
+    public int outstanding() {
+        return outstanding.get();
+    }
+
+    private synchronized PooledBuffer allocateSlab() {
+        PooledBuffer b = shared.poll();
+        if (b != null) {
+            return b;
+        }
+
+        // the pool only grows when every buffer is out, which is also when leaks show up
+        reportLeaks();
+
+        long slabBytes = (long) bufferSize * buffersPerSlab;
+        if (pooledBytes + slabBytes > maxPooledBytes) {
+            return new PooledBuffer(ByteBuffer.allocate(bufferSize), false);
+        }
+
+        ByteBuffer slab = ByteBuffer.allocateDirect((int) slabBytes);
+        pooledBytes += slabBytes;
+
+        PooledBuffer first = null;
+        for (int i = 0; i < buffersPerSlab; i++) {
+            PooledBuffer pb = new PooledBuffer(slab.slice(i * bufferSize, bufferSize), true);
+            all.add(pb);
+            if (first == null) {
+                first = pb;
+            } else {
+                shared.add(pb);
+            }
+        }
+        return first;
+    }
+
+    private void reportLeaks() {
+        long now = System.currentTimeMillis();
+        int leaked = 0;
+        for (PooledBuffer pb : all) {
+            if (pb.inUse.get() && now - pb.borrowedAt > LEAK_AGE_MS) {
+                leaked++;
+            }
+        }
+        if (leaked > 0) {
+            System.err.println("✗ BufferPool: " + leaked + " buffers held for more than "
+                    + (LEAK_AGE_MS / 1000) + "s, possible leak (" + outstanding.get() + " outstanding)");
+        }
+    }
+}
@@ -0,0 +1,128 @@
+package utils;
+
+import java.util.function.Consumer;
+
+/**
+ * Hashed timing wheel. Each bucket covers one tick; a timeout lands in the bucket of its
+ * deadline tick and stays there across rounds, so scheduling and cancelling are O(1) and
+ * advancing the wheel only touches the buckets whose ticks have passed.
+ * Not thread-safe: every call must come from the owning event loop.
+ */
+public final class TimingWheel<T> {
+
+    public static final class Timeout<T> {
+
+        private final T item;
+        private final long deadline;
+        private final long tick;
+        private Timeout<T> prev, next;
+        private boolean linked;
+
+        private Timeout(T item, long deadline, long tick) {
+            this.item = item;
+            this.deadline = deadline;
+            this.tick = tick;
+        }
+
+        public T getItem() {
+            return item;
+        }
+
+        public long getDeadline() {
+            return deadline;
+        }
+    }
+
+    private final long tickMs;
+    private final int mask;
+    private final Timeout<T>[] buckets;
+    private long currentTick;
+    private int size;
+
+    public TimingWheel(long tickMs, int wheelSize, long now) {
+        if (tickMs <= 0 || wheelSize <= 0 || Integer.bitCount(wheelSize) != 1) {
+            throw new IllegalArgumentException("tickMs must be > 0 and wheelSize a power of two");
+        }
+        this.tickMs = tickMs;
+        this.mask = wheelSize - 1;
+        @SuppressWarnings("unchecked")
+        Timeout<T>[] buckets = (Timeout<T>[]) new Timeout<?>[wheelSize];
+        this.buckets = buckets;
+        this.currentTick = now / tickMs;
+    }
+
+    public Timeout<T> schedule(T item, long deadline) {
+        // round up so nothing fires before its deadline; already-due entries fire on the next tick
+        long tick = Math.max((deadline + tickMs - 1) / tickMs, currentTick + 1);
+        Timeout<T> t = new Timeout<>(item, deadline, tick);
+
+        int idx = (int) (tick & mask);
+        t.next = buckets[idx];
+        if (t.next != null) {
+            t.next.prev = t;
+        }
+        buckets[idx] = t;
+        t.linked = true;
+        size++;
+        return t;
+    }
+
+    public void cancel(Timeout<T> t) {
+        if (t == null || !t.linked) {
+            return;
+        }
+        int idx = (int) (t.tick & mask);
+        if (t.prev != null) {
+            t.prev.next = t.next;
+        } else {
+            buckets[idx] = t.next;
+        }
+        if (t.next != null) {
+            t.next.prev = t.prev;
+        }
+        t.prev = null;
+        t.next = null;
+        t.linked = false;
+        size--;
+    }
+
+    // hands every timeout whose tick has passed to onExpired; the callback may schedule again
+    public void expire(long now, Consumer<T> onExpired) {
+        long nowTick = now / tickMs;
+        if (nowTick <= currentTick) {
+            return;
+        }
+
+        long ticks = Math.min(nowTick - currentTick, buckets.length);
+        for (long i = 1; i <= ticks; i++) {
+            int idx = (int) ((currentTick + i) & mask);
+            Timeout<T> t = buckets[idx];
+            while (t != null) {
+                Timeout<T> next = t.next;
+                if (t.tick <= nowTick) {
+                    cancel(t);
+                    onExpired.accept(t.item);
+                }
+                t = next;
+            }
+        }
+        currentTick = nowTick;
+    }
+
+    // milliseconds until the next non-empty bucket is due, or -1 when nothing is scheduled
+    public long nextExpiryDelay(long now) {
+        if (size == 0) {
+            return -1;
+        }
+        for (long tick = currentTick + 1; tick <= currentTick + buckets.length; tick++) {
+            if (buckets[(int) (tick & mask)] != null) {
+                return Math.max(1, tick * tickMs - now);
+            }
+        }
+        return -1;
+    }
+
+    public int size() {
+        return size;
+    }
+}
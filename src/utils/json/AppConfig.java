@@ -6,6 +6,13 @@ public class AppConfig {
 
     public Timeouts timeouts = new Timeouts();
     public List<ServerConfig> servers = new ArrayList<>();
+    public int eventLoops = Runtime.getRuntime().availableProcessors();
+    public int reusePortShards = 0; // > 1 opens one SO_REUSEPORT listener per loop and port
+    public String executionMode = "event_loop"; // or "virtual_threads"
+    public StaticCache staticCache = new StaticCache();
+    public long mmapMaxBytes = 256L * 1024 * 1024; // total size of mapped files, 0 disables mapping
+    public CgiLimits cgiLimits = new CgiLimits();
+    public long cgiCacheMaxBytes = 16L * 1024 * 1024; // shared by routes with cgi.cache, 0 disables it
 
     public static class Timeouts {
 
@@ -14,6 +21,17 @@ public class AppConfig {
         public int idleKeepAliveMs = 60000;
     }
 
+    public static class CgiLimits {
+
+        public int maxConcurrent = 32; // scripts running at once across all routes
+        public int maxQueue = 128; // requests waiting for a slot before new ones get 503
+    }
+
+    public static class StaticCache {
+
+        public long maxBytes = 32L * 1024 * 1024; // 0 disables the cache
+        public long revalidateMs = 1000;
+    }
 
     public static class ServerConfig {
 
@@ -22,6 +40,8 @@ public class AppConfig {
         public List<Integer> ports = new ArrayList<>();
         public boolean defaultServer;
         public long clientMaxBodySize = 1048576L; // default 1 MB
+        public long clientBodyBufferSize = 64 * 1024; // larger request bodies are spilled to a temp file
+        public boolean clientBodyFsync = false; // force spilled bodies to disk before handling them
         public Map<Integer, String> errorPages = new HashMap<>();
         public List<RouteConfig> routes = new ArrayList<>();
     }
@@ -36,6 +56,18 @@ public class AppConfig {
 
         public String uploadDir;
 
+        public long sendfileThreshold = 1048576L; // larger files are mapped or sent with transferTo
+        public long mmapMaxSize = 16L * 1024 * 1024; // files up to this size are served from a shared mapping
+
+        public String etag = "strong"; // "strong", "weak" or "off"
+        public String cacheControl; // sent as-is on static responses when set
+
+        public String gzip = "off"; // "off", "static" (only .gz siblings) or "on" (also compress on the fly)
+        public long gzipMinSize = 1024;
+        public List<String> gzipTypes = new ArrayList<>(List.of(
+                "text/html", "text/css", "text/plain", "text/xml", "application/javascript",
+                "application/json", "application/xml", "image/svg+xml"));
+
         public CgiConfig cgi;
         public Redirect redirect;
     }
@@ -44,6 +76,23 @@ public class AppConfig {
 
         public String extension;
         public String interpreter;
+        // "process" forks the interpreter per request, "scgi" hands requests to pooled workers
+        public String mode = "process";
+        public int workersMin = 1;
+        public int workersMax = 4;
+        public int workerMaxRequests = 500;
+        public long queueTimeoutMs = 2000; // wait for a concurrency slot, then for a pooled worker
+        public int maxConcurrent = 0; // 0: only the global cgi_limits cap applies
+        public int maxQueue = 0; // 0: only the global queue bound applies
+        public int priority = 0; // higher goes first when requests are queued
+        public String workerScript = "cgi/scgi_worker.py";
+        public CgiCache cache; // null: output is never cached
+    }
+
+    public static class CgiCache {
+
+        public long ttlMs = 0; // used when the script sends no max-age; 0 caches only what it marks
+        public List<String> vary = new ArrayList<>(); // request headers that are part of the key
     }
 
     public static class Redirect {
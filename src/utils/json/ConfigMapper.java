@@ -25,6 +25,65 @@ public class ConfigMapper {
                     }
                     if (t.containsKey("idle_keep_alive_ms")) {
                         cfg.timeouts.idleKeepAliveMs = asInt(t.get("idle_keep_alive_ms"), "timeouts.idle_keep_alive_ms");
+                    } else if (t.containsKey("keep_alive_ms")) {
+                        cfg.timeouts.idleKeepAliveMs = asInt(t.get("keep_alive_ms"), "timeouts.keep_alive_ms");
+                    }
+                }
+            }
+        } catch (Exception ignored) {
+        }
+
+        try {
+            if (obj.containsKey("event_loops")) {
+                int loops = asInt(obj.get("event_loops"), "event_loops");
+                if (loops > 0) {
+                    cfg.eventLoops = loops;
+                }
+            }
+            if (obj.containsKey("reuse_port_shards")) {
+                cfg.reusePortShards = asInt(obj.get("reuse_port_shards"), "reuse_port_shards");
+            }
+            if (obj.containsKey("execution_mode")) {
+                String mode = asString(obj.get("execution_mode"), "execution_mode");
+                if ("event_loop".equals(mode) || "virtual_threads".equals(mode)) {
+                    cfg.executionMode = mode;
+                }
+            }
+        } catch (Exception ignored) {
+        }
+
+        try {
+            if (obj.containsKey("static_cache")) {
+                Map<String, Object> c = asObject(obj.get("static_cache"), "static_cache");
+                if (c.containsKey("max_bytes")) {
+                    cfg.staticCache.maxBytes = asLong(c.get("max_bytes"), "static_cache.max_bytes");
+                }
+                if (c.containsKey("revalidate_ms")) {
+                    cfg.staticCache.revalidateMs = asLong(c.get("revalidate_ms"), "static_cache.revalidate_ms");
+                }
+            }
+            if (obj.containsKey("mmap_max_bytes")) {
+                cfg.mmapMaxBytes = asLong(obj.get("mmap_max_bytes"), "mmap_max_bytes");
+            }
+            if (obj.containsKey("cgi_cache_max_bytes")) {
+                cfg.cgiCacheMaxBytes = asLong(obj.get("cgi_cache_max_bytes"), "cgi_cache_max_bytes");
+            }
+        } catch (Exception ignored) {
+        }
+
+        try {
+            if (obj.containsKey("cgi_limits")) {
+                Map<String, Object> l = asObject(obj.get("cgi_limits"), "cgi_limits");
+                if (l.containsKey("max_concurrent")) {
+                    int n = asInt(l.get("max_concurrent"), "cgi_limits.max_concurrent");
+                    if (n > 0) {
+                        cfg.cgiLimits.maxConcurrent = n;
+                    }
+                }
+                if (l.containsKey("max_queue")) {
+                    int n = asInt(l.get("max_queue"), "cgi_limits.max_queue");
+                    if (n >= 0) {
+                        cfg.cgiLimits.maxQueue = n;
                     }
                 }
             }
@@ -125,6 +184,17 @@ public class ConfigMapper {
             sc.clientMaxBodySize = maxBody;
             sc.defaultServer = bdef.value;
 
+            if (s.containsKey("client_body_buffer_size")) {
+                sc.clientBodyBufferSize = asLong(s.get("client_body_buffer_size"), path + ".client_body_buffer_size");
+            }
+            if (s.containsKey("client_body_fsync")) {
+                BoolParse bf = asBoolean(s.get("client_body_fsync"));
+                if (!bf.ok) {
+                    return null;
+                }
+                sc.clientBodyFsync = bf.value;
+            }
+
             if (s.containsKey("error_pages")) {
                 Map<String, Object> eps = asObject(s.get("error_pages"), path + ".error_pages");
                 if (eps == null) {
@@ -225,6 +295,52 @@ public class ConfigMapper {
                 }
             }
 
+            if (r.containsKey("sendfile_threshold")) {
+                rc.sendfileThreshold = asLong(r.get("sendfile_threshold"), path + ".sendfile_threshold");
+            }
+            if (r.containsKey("mmap_max_size")) {
+                rc.mmapMaxSize = asLong(r.get("mmap_max_size"), path + ".mmap_max_size");
+            }
+
+            if (r.containsKey("etag")) {
+                String e = asString(r.get("etag"), path + ".etag");
+                if (e == null || !(e.equals("strong") || e.equals("weak") || e.equals("off"))) {
+                    return null;
+                }
+                rc.etag = e;
+            }
+            if (r.containsKey("cache_control")) {
+                rc.cacheControl = asString(r.get("cache_control"), path + ".cache_control");
+                if (rc.cacheControl == null) {
+                    return null;
+                }
+            }
+
+            if (r.containsKey("gzip")) {
+                String g = asString(r.get("gzip"), path + ".gzip");
+                if (g == null || !(g.equals("off") || g.equals("static") || g.equals("on"))) {
+                    return null;
+                }
+                rc.gzip = g;
+            }
+            if (r.containsKey("gzip_min_size")) {
+                rc.gzipMinSize = asLong(r.get("gzip_min_size"), path + ".gzip_min_size");
+            }
+            if (r.containsKey("gzip_types")) {
+                List<Object> ts = asArray(r.get("gzip_types"), path + ".gzip_types");
+                if (ts == null) {
+                    return null;
+                }
+                rc.gzipTypes = new ArrayList<>();
+                for (int i = 0; i < ts.size(); i++) {
+                    String t = asString(ts.get(i), path + ".gzip_types[" + i + "]");
+                    if (t == null) {
+                        return null;
+                    }
+                    rc.gzipTypes.add(t.trim());
+                }
+            }
+
             if (r.containsKey("directory_listing")) {
                 BoolParse bd = asBoolean(r.get("directory_listing"));
                 if (!bd.ok) {
@@ -252,6 +368,74 @@ public class ConfigMapper {
                     return null;
                 }
 
+                if (c.containsKey("mode")) {
+                    cg.mode = asString(c.get("mode"), path + ".cgi.mode");
+                    if (!"process".equals(cg.mode) && !"scgi".equals(cg.mode)) {
+                        return null;
+                    }
+                }
+                if (c.containsKey("workers_min")) {
+                    cg.workersMin = asInt(c.get("workers_min"), path + ".cgi.workers_min");
+                }
+                if (c.containsKey("workers_max")) {
+                    cg.workersMax = asInt(c.get("workers_max"), path + ".cgi.workers_max");
+                }
+                if (c.containsKey("worker_max_requests")) {
+                    cg.workerMaxRequests = asInt(c.get("worker_max_requests"), path + ".cgi.worker_max_requests");
+                }
+                if (c.containsKey("queue_timeout_ms")) {
+                    cg.queueTimeoutMs = asLong(c.get("queue_timeout_ms"), path + ".cgi.queue_timeout_ms");
+                }
+                if (c.containsKey("worker_script")) {
+                    cg.workerScript = asString(c.get("worker_script"), path + ".cgi.worker_script");
+                    if (cg.workerScript == null || cg.workerScript.trim().isEmpty()) {
+                        return null;
+                    }
+                    cg.workerScript = cg.workerScript.trim();
+                }
+                if (c.containsKey("max_concurrent")) {
+                    cg.maxConcurrent = asInt(c.get("max_concurrent"), path + ".cgi.max_concurrent");
+                }
+                if (c.containsKey("max_queue")) {
+                    cg.maxQueue = asInt(c.get("max_queue"), path + ".cgi.max_queue");
+                }
+                if (c.containsKey("priority")) {
+                    cg.priority = asInt(c.get("priority"), path + ".cgi.priority");
+                }
+                if (cg.maxConcurrent < 0 || cg.maxQueue < 0) {
+                    return null;
+                }
+                if (c.containsKey("cache")) {
+                    Map<String, Object> k = asObject(c.get("cache"), path + ".cgi.cache");
+                    if (k == null) {
+                        return null;
+                    }
+                    cg.cache = new AppConfig.CgiCache();
+                    if (k.containsKey("ttl_ms")) {
+                        cg.cache.ttlMs = asLong(k.get("ttl_ms"), path + ".cgi.cache.ttl_ms");
+                    }
+                    if (k.containsKey("vary")) {
+                        List<Object> vs = asArray(k.get("vary"), path + ".cgi.cache.vary");
+                        if (vs == null) {
+                            return null;
+                        }
+                        for (int i = 0; i < vs.size(); i++) {
+                            String v = asString(vs.get(i), path + ".cgi.cache.vary[" + i + "]");
+                            if (v == null || v.trim().isEmpty()) {
+                                return null;
+                            }
+                            cg.cache.vary.add(v.trim());
+                        }
+                    }
+                    if (cg.cache.ttlMs < 0) {
+                        return null;
+                    }
+                }
+                if (cg.workersMin < 0 || cg.workersMax < 1 || cg.workersMin > cg.workersMax
+                        || cg.workerMaxRequests < 1 || cg.queueTimeoutMs < 0) {
+                    return null;
+                }
+
                 rc.cgi = cg;
             }
 